@@ -0,0 +1,234 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the Snapshotter against a local, embedded HTTP server that serves fixture pages: a page that is always
+ * found, a page that fails twice with 503, a page that is busy once with 429, a 404, a permanent 500, a page that is
+ * no html, and a malformed url that never reaches the server.
+ * All pages are snapshotted once before the tests, which check which pages are saved and which fail, the number of
+ * requests and retries per page, the backoff between the attempts of a page, and the spacing of the requests to the
+ * host. A second snapshot requests a page conditionally and refers to the previous snapshot when the server answers
+ * 304. The tests take a few seconds because of the backoff
+ */
+public class SnapshotterTest {
+    private static final int THREADS = 4;
+    private static final double REQUESTS_PER_SECOND = 2;
+    /**
+     * The margin for the backoff checks, in milliseconds
+     */
+    private static final long TOLERANCE_MILLIS = 20;
+    /**
+     * The margin for the spacing of the requests, in milliseconds. The Snapshotter spaces the starts of the requests,
+     * but the time until a request arrives at the server varies by up to about 100 ms, as the first request of a
+     * thread opens a connection
+     */
+    private static final long SPACING_TOLERANCE_MILLIS = 200;
+    private static final String ETAG = "\"v1\"";
+
+    /**
+     * The number of requests per path, the arrival times of all requests, and of the requests per path, from
+     * System.nanoTime()
+     */
+    private static ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private static List<Long> arrivals = Collections.synchronizedList(new ArrayList<>());
+    private static ConcurrentHashMap<String, List<Long>> arrivalsPerPath = new ConcurrentHashMap<>();
+    private static AtomicInteger notModified = new AtomicInteger();
+
+    private static HttpServer server;
+    private static ExecutorService executor;
+    private static String base;
+    private static File dir, first;
+    private static HashMap<String, String> errors;
+    private static Snapshotter.Report report;
+
+    /**
+     * Start the server, and snapshot all fixture pages
+     *
+     * @throws Exception .
+     */
+    @BeforeClass
+    public static void snapshot() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", SnapshotterTest::handle);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        dir = Files.createTempDirectory("hdiff-snapshot-test").toFile();
+        first = new File(dir, "first");
+        if (!first.mkdir())
+            throw new IOException("Cannot create the snapshot folder in " + dir);
+        //Load and initialize HtmlUnit first, which delays the first request of a thread by hundreds of milliseconds
+        HashMap<String, String> warmup = new HashMap<>();
+        for (int i = 0; i < THREADS; i++)
+            warmup.put("warmup" + i, base + "/warmup");
+        new Snapshotter(first.getPath(), null, false, THREADS, 0, 0).snapshot(warmup);
+        requests.clear();
+        arrivals.clear();
+        arrivalsPerPath.clear();
+        HashMap<String, String> links = new HashMap<>();
+        for (String page : new String[]{"ok", "flaky", "busy", "missing", "broken", "text"})
+            links.put(page, base + "/" + page);
+        links.put("malformed", "no-protocol/page.html");
+        Snapshotter snapshotter = new Snapshotter(first.getPath(), null, false, THREADS, REQUESTS_PER_SECOND,
+                Snapshotter.RETRIES);
+        errors = snapshotter.snapshot(links);
+        report = snapshotter.getReport();
+    }
+
+    @AfterClass
+    public static void stop() {
+        if (server != null)
+            server.stop(0);
+        if (executor != null)
+            executor.shutdownNow();
+        if (dir != null)
+            deleteRecursively(dir);
+    }
+
+    @Test
+    public void savesFoundPages() {
+        assertFalse(errors.toString(), errors.containsKey("ok") || errors.containsKey("flaky") ||
+                errors.containsKey("busy"));
+        assertEquals(3, report.getSaved());
+    }
+
+    @Test
+    public void failsMissingBrokenTextAndMalformedPages() {
+        assertEquals(new HashSet<>(Arrays.asList("missing", "broken", "text", "malformed")), errors.keySet());
+        assertEquals(4, report.getFailed());
+    }
+
+    @Test
+    public void retriesOnlyWhenTheServerMaySucceedLater() {
+        assertEquals("404 is not retried", 1, count("/missing"));
+        assertEquals("503 twice is retried twice", 3, count("/flaky"));
+        assertEquals("429 once is retried once", 2, count("/busy"));
+        assertEquals("permanent 500 stops after the retries", 1 + Snapshotter.RETRIES, count("/broken"));
+        assertEquals("malformed url fails at once", 2 + 1 + Snapshotter.RETRIES, report.getRetried());
+    }
+
+    @Test
+    public void doublesTheBackoff() {
+        List<Long> flaky = arrivalsPerPath.get("/flaky");
+        long firstBackoff = millis(flaky.get(1) - flaky.get(0)), secondBackoff = millis(flaky.get(2) - flaky.get(1));
+        assertTrue(firstBackoff + " ms", firstBackoff >= Snapshotter.BACKOFF_MILLIS - TOLERANCE_MILLIS);
+        assertTrue(secondBackoff + " ms", secondBackoff >= 2 * Snapshotter.BACKOFF_MILLIS - TOLERANCE_MILLIS);
+    }
+
+    @Test
+    public void spacesTheRequestsToTheHost() {
+        long minimumGap = Long.MAX_VALUE;
+        List<Long> sorted = new ArrayList<>(arrivals);
+        Collections.sort(sorted);
+        for (int i = 1; i < sorted.size(); i++)
+            minimumGap = Math.min(minimumGap, millis(sorted.get(i) - sorted.get(i - 1)));
+        assertTrue("minimum gap " + minimumGap + " ms over " + sorted.size() + " requests",
+                minimumGap >= 1000 / REQUESTS_PER_SECOND - SPACING_TOLERANCE_MILLIS);
+    }
+
+    @Test
+    public void refersToThePreviousSnapshotOfAnUnchangedPage() throws Exception {
+        File second = new File(dir, "second");
+        if (!second.mkdir())
+            throw new IOException("Cannot create the snapshot folder in " + dir);
+        HashMap<String, String> again = new HashMap<>();
+        again.put("ok", base + "/ok");
+        Snapshotter next = new Snapshotter(second.getPath(), first.getPath(), false, THREADS, REQUESTS_PER_SECOND,
+                Snapshotter.RETRIES);
+        assertTrue(next.snapshot(again).isEmpty());
+        assertEquals(1, notModified.get());
+        assertEquals(1, next.getReport().getUnchanged());
+    }
+
+    /**
+     * Serve a fixture page. The behaviour of a page depends on the number of times it was requested before
+     *
+     * @param exchange The request and response
+     * @throws IOException Thrown when the response cannot be sent
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        long arrival = System.nanoTime();
+        String path = exchange.getRequestURI().getPath();
+        int previousRequests = requests.computeIfAbsent(path, p -> new AtomicInteger()).getAndIncrement();
+        arrivals.add(arrival);
+        arrivalsPerPath.computeIfAbsent(path, p -> Collections.synchronizedList(new ArrayList<>())).add(arrival);
+        String html = "<html><head><title>" + path + "</title></head><body><p>" + path + "</p></body></html>";
+        switch (path) {
+            case "/ok":
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    respond(exchange, 304, null, null);
+                } else
+                    respond(exchange, 200, "text/html", html);
+                break;
+            case "/flaky":
+                respond(exchange, previousRequests < 2 ? 503 : 200, "text/html", html);
+                break;
+            case "/busy":
+                respond(exchange, previousRequests < 1 ? 429 : 200, "text/html", html);
+                break;
+            case "/broken":
+                respond(exchange, 500, "text/html", html);
+                break;
+            case "/text":
+                respond(exchange, 200, "text/plain", "No html");
+                break;
+            case "/warmup":
+                respond(exchange, 200, "text/html", html);
+                break;
+            default:
+                respond(exchange, 404, "text/html", html);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static int count(String path) {
+        AtomicInteger count = requests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                deleteRecursively(child);
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+}
@@ -0,0 +1,178 @@
+import org.htmlcleaner.CompactXmlSerializer;
+import org.htmlcleaner.HtmlCleaner;
+import org.htmlcleaner.TagNode;
+import org.jdom2.*;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the TreeBuilder creates exactly the trees that were created by serializing the TagNodes of HtmlCleaner,
+ * parsing the result with a SAXBuilder and copying the Document to CustomElements. The old path is kept here, only to
+ * compare the TreeBuilder with.
+ * The trees are compared for the pages in examples/ and for a page of edge cases: entities and character references,
+ * also malformed and out of range ones, unpaired surrogates in texts and attributes, CDATA, comments, processing
+ * instructions, namespaces, carriage returns, and scripts and styles with and without their own CDATA markers
+ */
+public class TreeBuilderTest {
+    private static final String[] EXAMPLES = {
+            "examples/page1_old.html", "examples/page1_new.html",
+            "examples/page2_old.html", "examples/page2_new.html",
+            "examples/page3_old.html", "examples/page3_new.html",
+            "examples/papa_alt.html", "examples/papa_neu.html"
+    };
+
+    @Test
+    public void buildsTheSameTreesForTheExamples() throws Exception {
+        for (String file : EXAMPLES)
+            assertNull(file, difference(legacyTree(file), Utils.filenameToTree(file), "/"));
+    }
+
+    @Test
+    public void buildsTheSameTreeForEdgeCases() throws Exception {
+        File edgeCases = File.createTempFile("hdiff-edge-cases", ".html");
+        try {
+            Files.write(edgeCases.toPath(), edgeCasePage().getBytes(StandardCharsets.UTF_8));
+            assertNull(difference(legacyTree(edgeCases.getPath()), Utils.filenameToTree(edgeCases.getPath()), "/"));
+        } finally {
+            Files.delete(edgeCases.toPath());
+        }
+    }
+
+    /**
+     * A string may hold an unpaired surrogate itself, which a file in UTF-8 cannot
+     */
+    @Test
+    public void replacesUnpairedSurrogatesInAString() throws Exception {
+        CustomElement tree = Utils.htmlToTree("<p title=\"a\uD800b\">c\uDC00d<b>e</b>f\uD800</p>");
+        CustomElement p = tree.getCustomChildren(false).get(1).getCustomChildren(false).get(0);
+        assertEquals("a?b", p.getAttributeValue("title"));
+        assertEquals("c?d", p.getCustomText());
+        assertEquals("f?", p.getCustomChildren(false).get(0).getTail());
+    }
+
+    /**
+     * The old path failed on characters that XML doesn't allow, so these are not compared with it. HtmlCleaner
+     * replaces the references in attributes itself, and turns control characters in texts into spaces
+     */
+    @Test
+    public void keepsOrReplacesCharactersThatXmlDoesNotAllow() throws Exception {
+        CustomElement tree = Utils.htmlToTree("<p title=\"a&#1;b&#xFFFF;\">c&#1;d&null;e\u0001f</p>");
+        CustomElement p = tree.getCustomChildren(false).get(1).getCustomChildren(false).get(0);
+        assertEquals("a?b?", p.getAttributeValue("title"));
+        assertEquals("c&#1;d?e f", p.getCustomText());
+    }
+
+    /**
+     * Find the first difference between two trees
+     *
+     * @param expected The tree created by the old path
+     * @param actual   The tree created by the TreeBuilder
+     * @param path     The path of the roots
+     * @return The path of the first node that differs, with what differs, or null if the trees are equal
+     */
+    private static String difference(CustomElement expected, CustomElement actual, String path) {
+        path = path + expected.getName();
+        if (!expected.getName().equals(actual.getName()))
+            return path + " (name " + actual.getName() + ")";
+        if (!expected.getNamespaceURI().equals(actual.getNamespaceURI()))
+            return path + " (namespace)";
+        if (!expected.getCustomText().equals(actual.getCustomText()))
+            return path + " (text)";
+        if (!expected.getTail().equals(actual.getTail()))
+            return path + " (tail)";
+        if (!attributes(expected).equals(attributes(actual)))
+            return path + " (attributes)";
+        if (!Objects.equals(expected.getStyleAttributes(), actual.getStyleAttributes()))
+            return path + " (style)";
+        List<CustomElement> expectedChildren = expected.getCustomChildren(false);
+        List<CustomElement> actualChildren = actual.getCustomChildren(false);
+        if (expectedChildren.size() != actualChildren.size())
+            return path + " (children)";
+        for (int i = 0; i < expectedChildren.size(); i++) {
+            String difference = difference(expectedChildren.get(i), actualChildren.get(i), path + "[" + i + "]/");
+            if (difference != null)
+                return difference;
+        }
+        return null;
+    }
+
+    private static List<String> attributes(CustomElement element) {
+        List<String> attributes = new ArrayList<>();
+        for (Attribute a : element.getAttributes())
+            attributes.add(a.getQualifiedName() + "=" + a.getValue());
+        return attributes;
+    }
+
+    /**
+     * Create a tree from a file like it was done before the TreeBuilder
+     *
+     * @param filename The file
+     * @return The tree
+     * @throws Exception Thrown when the file cannot be read or parsed
+     */
+    private static CustomElement legacyTree(String filename) throws Exception {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        TagNode root = cleaner.clean(new File(filename), "utf-8");
+        String content = new CompactXmlSerializer(cleaner.getProperties()).getAsString(root);
+        Document d = new SAXBuilder().build(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+        CustomElement result = new CustomElement(d.getRootElement());
+        addChildrenToParent(d.getRootElement().getContent(), result);
+        return result;
+    }
+
+    /**
+     * Copy the content of an Element to a CustomElement, like Utils.addChildrenToParent did
+     *
+     * @param children The content of the Element
+     * @param parent   The CustomElement
+     */
+    private static void addChildrenToParent(List<Content> children, CustomElement parent) {
+        while (children.size() > 0) {
+            Content first = children.remove(0);
+            if (first instanceof Text)
+                parent.setCustomText(new Text(parent.getCustomText() + ((Text) first).getText()));
+            else if (first instanceof CDATA)
+                parent.setCustomText(new Text(parent.getCustomText() + ((CDATA) first).getTextNormalize()));
+            else if (first instanceof Element) {
+                CustomElement child = new CustomElement((Element) first);
+                addChildrenToParent(((Element) first).getContent(), child);
+                if (children.size() > 0 && children.get(0) instanceof Text)
+                    child.setTail((Text) children.remove(0));
+                parent.addContent(child);
+            }
+        }
+    }
+
+    /**
+     * @return A page of edge cases for the TreeBuilder
+     */
+    private static String edgeCasePage() {
+        return "<!DOCTYPE html>\r\n<html xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:svg=\"http://www.w3.org/2000/svg\">" +
+                "<head><title>Edge &amp; cases</title><style>p > b { color: red; }</style>" +
+                "<script>if (a < b && c > d) { x = '<p>'; }</script></head>\r\n<body class=\"a  b\r\nc\">" +
+                "<p title=\"x&#xD800;y\" data-v=\"&lt;&quot;&#65;&#x42;\">a&#xD800;b <b>c</b>&#xDC00;d &#x1F600; e</p>" +
+                "<p title=\"&#xDC00;\">&#xD83D;&#xDE00; paired &copy; &nbsp; &unknown;</p>" +
+                "text<!-- comment -->more text<?php echo 1; ?>after" +
+                "<div style=\"color: red; margin:0\">one\r\ntwo\rthree\n<br/>tail<![CDATA[ data <b> ]]>end</div>" +
+                "<svg:svg><svg:circle r=\"1\"/></svg:svg>" +
+                "<ul><li>1</li>   <li>2</li>\t<li>3</li></ul>" +
+                "<script>var s = '&#xD800;';</script>" +
+                "<p title=\"&#xZZ; &#99999999999; &#X41; &#x41 &#0065; &# a\">&#xZZ; &#x110000; " +
+                "&#99999999999; &#0; &#X41; &#x41 &#0065;x &# a &copy &amp;lt; &lt;&gt;&quot;&apos; &amp</p>" +
+                "<p>\r\n&#13;&#10;a&#13;b&#xD;&#xA;c</p>" +
+                "<script>/*<![CDATA[*/ var a = 1; /*]]>*/</script><script>//<![CDATA[\n x < 2 \n//]]></script>" +
+                "<script>a]]>b</script><script></script><style><!-- p { color: red; } --></style>" +
+                "<script>\nif (a) { b(); }\r\n</script><style>p { }<!-- c --> q { }</style>" +
+                "</body></html>";
+    }
+}
@@ -0,0 +1,216 @@
+import hdiff.jmh.Pipeline;
+import org.jdom2.Attribute;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * The stages of a diff of one pair of documents, for the PipelineBenchmark. A document is one of the pairs in
+ * examples/, "syntheticN" for the synthetic pages of SyntheticDocuments with about N elements, or "tableN" for the
+ * synthetic table of SyntheticDocuments with N rows, of which both versions are equal.
+ * The Matcher and the Differ use the CandidateIndex, as exhaustive matching takes quadratic time on the synthetic
+ * documents
+ */
+public class PipelineStages implements Pipeline {
+    /**
+     * The minimum similarities regarding the attributes and the children that the Differ uses by default. The Matcher
+     * uses its thresholds as they are given
+     */
+    private static final double F = 0.5, T = 0.2;
+    private final File[] files;
+    private final boolean temporary;
+    private final File output;
+    private final CustomElement left, right;
+    private final byte[] stored;
+    private final ArrayList<String[]> texts = new ArrayList<>();
+    private final Differ differ = new Differ(0.0, 0.0, false);
+    private CustomElement fresh;
+
+    /**
+     * @param document The name of the pair of documents
+     * @throws IOException Thrown when the documents cannot be read or written
+     */
+    public PipelineStages(String document) throws IOException {
+        this.temporary = !document.startsWith("page") && !document.equals("papa");
+        this.files = files(document);
+        this.output = File.createTempFile("hdiff-benchmark", ".html");
+        this.left = Utils.filenameToTree(this.files[0].getPath());
+        this.right = Utils.filenameToTree(this.files[1].getPath());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TreeSerializer.write(this.left, out);
+        this.stored = out.toByteArray();
+    }
+
+    /**
+     * Find or create the files of a pair of documents
+     *
+     * @param document The name of the pair of documents
+     * @return The old and the new file
+     * @throws IOException Thrown when the synthetic documents cannot be written
+     */
+    static File[] files(String document) throws IOException {
+        if (document.equals("papa"))
+            return new File[]{new File("examples/papa_alt.html"), new File("examples/papa_neu.html")};
+        if (document.startsWith("page"))
+            return new File[]{new File("examples/" + document + "_old.html"), new File("examples/" + document + "_new.html")};
+        String oldHtml, newHtml;
+        if (document.startsWith("synthetic")) {
+            int size = Integer.parseInt(document.substring("synthetic".length()));
+            oldHtml = SyntheticDocuments.syntheticPage(size, false);
+            newHtml = SyntheticDocuments.syntheticPage(size, true);
+        } else if (document.startsWith("table"))
+            oldHtml = newHtml = SyntheticDocuments.syntheticTable(Integer.parseInt(document.substring("table".length())));
+        else
+            throw new IllegalArgumentException("Unknown document " + document);
+        File[] result = {File.createTempFile(document + "_old", ".html"), File.createTempFile(document + "_new", ".html")};
+        Files.write(result[0].toPath(), oldHtml.getBytes(StandardCharsets.UTF_8));
+        Files.write(result[1].toPath(), newHtml.getBytes(StandardCharsets.UTF_8));
+        return result;
+    }
+
+    @Override
+    public void collectTexts() throws Exception {
+        this.texts.clear();
+        for (Map.Entry<CustomElement, CustomElement> match : new Matcher(F, T, false).bestMatch(this.left, this.right).get(0).entrySet()) {
+            if (!match.getKey().getCustomText().equals(match.getValue().getCustomText()))
+                this.texts.add(new String[]{match.getKey().getCustomText(), match.getValue().getCustomText()});
+            if (!match.getKey().getTail().equals(match.getValue().getTail()))
+                this.texts.add(new String[]{match.getKey().getTail(), match.getValue().getTail()});
+        }
+    }
+
+    @Override
+    public Object filenameToTree() throws Exception {
+        return Utils.filenameToTree(this.files[0].getPath());
+    }
+
+    @Override
+    public Object readStoredTree() throws Exception {
+        return TreeSerializer.read(ByteBuffer.wrap(this.stored));
+    }
+
+    @Override
+    public Object match() throws Exception {
+        return new Matcher(F, T, false).match(this.left, this.right);
+    }
+
+    @Override
+    public Object bestMatch() throws Exception {
+        return new Matcher(F, T, false).bestMatch(this.left, this.right);
+    }
+
+    @Override
+    public int diffTexts(String granularity) {
+        TextDiffer textDiffer = new TextDiffer(TextDiffer.Granularity.valueOf(granularity), TextDiffer.MAX_EDIT_COST);
+        int length = 0;
+        for (String[] text : this.texts)
+            length += textDiffer.diff(text[0], text[1]).length();
+        return length;
+    }
+
+    @Override
+    public Object output() throws Exception {
+        new Outputter().output(this.left, this.output.getPath());
+        return this.output;
+    }
+
+    @Override
+    public Object outputToStream() throws Exception {
+        new Outputter().output(this.left, new NullOutputStream());
+        return this.left;
+    }
+
+    @Override
+    public Object legacyOutput() throws Exception {
+        new LegacyOutputter().output(this.left, this.output.getPath());
+        return this.output;
+    }
+
+    @Override
+    public void prepareDiff() throws Exception {
+        this.fresh = TreeSerializer.read(ByteBuffer.wrap(this.stored));
+    }
+
+    @Override
+    public Object diff() throws Exception {
+        return this.differ.diff(this.fresh, this.right, new NullOutputStream());
+    }
+
+    @Override
+    public long phaseNanos(String phase) {
+        return this.differ.getPhaseNanos(Differ.Phase.valueOf(phase));
+    }
+
+    @Override
+    public void close() throws Exception {
+        Files.deleteIfExists(this.output.toPath());
+        if (this.temporary)
+            for (File file : this.files)
+                Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * An OutputStream that discards everything written to it
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * The Outputter as it was before it streamed its output: a PrintWriter over a FileWriter in the default charset,
+     * String.format for every piece of a tag, and a new indentation per line. It is only kept to compare the
+     * Outputter with
+     */
+    private static class LegacyOutputter {
+        private PrintWriter out;
+
+        void output(CustomElement root, String filename) throws IOException {
+            Files.copy(new File("src/htmls/template.html").toPath(), new File(filename).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            this.out = new PrintWriter(new BufferedWriter(new FileWriter(filename, true)));
+            write(root, 0);
+            printLine("</html>", 0);
+            this.out.close();
+        }
+
+        private void write(CustomElement root, Integer level) {
+            root.addClassesForOutputter();
+            StringBuilder sb = new StringBuilder(String.format("<%s ", root.getName()));
+            for (Attribute a : root.getAttributes())
+                sb.append(String.format("%s=\"%s\" ", a.getName(), a.getValue()));
+            if (root.getStyleAttributes().size() > 0) {
+                StringBuilder styles = new StringBuilder();
+                for (Map.Entry<String, String> entry : root.getStyleAttributes().entrySet())
+                    styles.append(String.format("%s:%s; ", entry.getKey(), entry.getValue()));
+                sb.append(String.format("style=\"%s\"", styles));
+            }
+            if (root.hasPopupTexts())
+                sb.append(String.format("popup=\"%s\"", root.popupTextsToHtml()));
+            printLine(sb.append(">").toString(), level);
+            printLine(root.getCustomText(), level + 1);
+            for (CustomElement child : root.getCustomChildren(true))
+                write(child, level + 1);
+            printLine(String.format("</%s>", root.getName()), level);
+            printLine(root.getTail(), level);
+        }
+
+        private void printLine(String s, Integer level) {
+            if (!s.equals("")) {
+                StringBuilder spaces = new StringBuilder();
+                for (int i = 0; i < level * 4; i++) spaces.append(" ");
+                out.println(spaces + s);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.Random;
+
+/**
+ * Creates the synthetic documents of the JMH benchmarks
+ */
+class SyntheticDocuments {
+    /**
+     * The number of elements of one item in a synthetic page
+     */
+    private static final int ELEMENTS_PER_ITEM = 6;
+
+    /**
+     * Create a synthetic page, consisting of items of ELEMENTS_PER_ITEM elements. The new version of the page differs
+     * from the old version by changed texts, and deleted, inserted and swapped items
+     *
+     * @param nrOfElements The approximate number of elements
+     * @param newVersion   Whether to create the new version of the page
+     * @return The html
+     */
+    static String syntheticPage(int nrOfElements, boolean newVersion) {
+        StringBuilder sb = new StringBuilder("<html><head><title>Synthetic page</title></head><body>");
+        Random random = new Random(nrOfElements);
+        int nrOfItems = nrOfElements / ELEMENTS_PER_ITEM;
+        for (int i = 0; i < nrOfItems; i++) {
+            int number = random.nextInt(1000);
+            if (newVersion && i % 97 == 0)//Deleted
+                continue;
+            if (newVersion && i % 131 == 0 && i + 1 < nrOfItems) {//Swapped with the next item
+                syntheticItem(sb, i + 1, random.nextInt(1000), false);
+                syntheticItem(sb, i, number, false);
+                i++;
+                continue;
+            }
+            syntheticItem(sb, i, number, newVersion && i % 50 == 0);
+            if (newVersion && i % 89 == 0)//Inserted
+                sb.append("<p class=\"inserted\">A paragraph that was added after item ").append(i).append("</p>");
+        }
+        return sb.append("</body></html>").toString();
+    }
+
+    private static void syntheticItem(StringBuilder sb, int i, int number, boolean changed) {
+        sb.append("<div class=\"item c").append(i % 7).append("\" id=\"item").append(i).append("\">")
+                .append("<h2>Item ").append(i).append("</h2>")
+                .append("<p>Some text about item ").append(i).append(changed ? ", which has changed, " : " ")
+                .append(number).append(" lorem ipsum dolor sit amet</p>")
+                .append("<ul><li>First ").append(i).append("</li><li>Second</li></ul></div>");
+    }
+
+    /**
+     * Create a synthetic page holding one table. The rows are direct children of the same tbody, and every row has
+     * text and tails that are collected from several pieces
+     *
+     * @param nrOfRows The number of rows
+     * @return The html
+     */
+    static String syntheticTable(int nrOfRows) {
+        StringBuilder sb = new StringBuilder("<html><head><title>Synthetic table</title></head><body><table><tbody>");
+        Random random = new Random(nrOfRows);
+        for (int i = 0; i < nrOfRows; i++)
+            sb.append("<tr class=\"r").append(i % 2).append("\"><td>Row ").append(i).append("</td>")
+                    .append("<td> ").append(random.nextInt(1000)).append(" <!-- amount --> EUR </td>")
+                    .append("<td><a href=\"#row").append(i).append("\">details</a> and\n  more </td></tr>\n");
+        return sb.append("</tbody></table></body></html>").toString();
+    }
+}
@@ -0,0 +1,79 @@
+import hdiff.jmh.Trees;
+import org.jdom2.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The tree operations of the old version of a pair of documents, for the TreeBenchmark, see PipelineStages
+ */
+public class TreeStages implements Trees {
+    private final CustomElement root;
+    private final List<CustomElement> nodes;
+
+    /**
+     * @param document The name of the pair of documents
+     * @throws Exception Thrown when the document cannot be read
+     */
+    public TreeStages(String document) throws Exception {
+        this.root = Utils.filenameToTree(PipelineStages.files(document)[0].getPath());
+        this.nodes = Utils.breadthFirstSearch(this.root);
+    }
+
+    @Override
+    public Object breadthFirstSearch() {
+        return Utils.breadthFirstSearch(this.root);
+    }
+
+    @Override
+    public Object postOrderTraverse() {
+        return Utils.postOrderTraverse(this.root);
+    }
+
+    @Override
+    public Object reversePostOrderTraverse() {
+        return Utils.reversePostOrderTraverse(this.root);
+    }
+
+    @Override
+    public int nrOfLeafsInSubtrees() {
+        int sum = 0;
+        for (CustomElement e : this.nodes)
+            sum += e.getNrOfLeafsInSubtree();
+        return sum;
+    }
+
+    @Override
+    public boolean isEqualTo() {
+        return this.root.isEqualTo(this.root, false);
+    }
+
+    @Override
+    public int iterateChildren() {
+        int count = 0;
+        for (CustomElement e : this.nodes)
+            for (CustomElement child : e.getCustomChildren(false))
+                count += child.getContentSize();
+        return count;
+    }
+
+    @Override
+    public int iterateCopiedChildren() {
+        int count = 0;
+        for (CustomElement e : this.nodes)
+            for (CustomElement child : copiedChildren(e))
+                count += child.getContentSize();
+        return count;
+    }
+
+    /**
+     * Return the children of an element like getCustomChildren(false) did before it cached the lists
+     */
+    private static ArrayList<CustomElement> copiedChildren(CustomElement e) {
+        ArrayList<CustomElement> result = new ArrayList<>();
+        for (Element child : e.getChildren())
+            if (!((CustomElement) child).isDeleted())
+                result.add((CustomElement) child);
+        return result;
+    }
+}
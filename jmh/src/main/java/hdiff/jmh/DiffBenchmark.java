@@ -0,0 +1,91 @@
+package hdiff.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a complete diff of the trees of the documents of the PipelineBenchmark. The phases of the Differ are
+ * interleaved per node, so they cannot run on their own. Instead, the time of every phase per diff is reported as a
+ * secondary result
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DiffBenchmark {
+    @Param({"page1", "page2", "page3", "papa", "synthetic1000", "synthetic10000", "synthetic100000"})
+    public String document;
+
+    private Pipeline pipeline;
+
+    @Setup
+    public void setup() throws Exception {
+        this.pipeline = Stages.create(Pipeline.class, "PipelineStages", this.document);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.pipeline.close();
+    }
+
+    /**
+     * Reads a fresh old tree before every diff, as the Differ edits the old tree into the new tree
+     */
+    @Setup(Level.Invocation)
+    public void prepareDiff() throws Exception {
+        this.pipeline.prepareDiff();
+    }
+
+    /**
+     * The time of the phases of the Differ, in milliseconds per diff. The time is summed over an iteration, and
+     * averaged at its end. JMH sums events over the measurement iterations, so every iteration reports its part of the
+     * average over all iterations
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Phases {
+        private static final String[] PHASES = {"Match", "Insert", "Update", "Move", "Align", "Text", "Delete", "Output"};
+        private final long[] nanos = new long[PHASES.length];
+        private long diffs;
+        public double match, insert, update, move, align, text, delete, output;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            Arrays.fill(this.nanos, 0);
+            this.diffs = 0;
+        }
+
+        void add(Pipeline pipeline) {
+            for (int i = 0; i < PHASES.length; i++)
+                this.nanos[i] += pipeline.phaseNanos(PHASES[i]);
+            this.diffs++;
+        }
+
+        @TearDown(Level.Iteration)
+        public void average(BenchmarkParams params) {
+            double[] millis = new double[PHASES.length];
+            for (int i = 0; i < PHASES.length; i++)
+                millis[i] = this.diffs == 0 ? 0 : this.nanos[i] / 1e6 / this.diffs / params.getMeasurement().getCount();
+            this.match = millis[0];
+            this.insert = millis[1];
+            this.update = millis[2];
+            this.move = millis[3];
+            this.align = millis[4];
+            this.text = millis[5];
+            this.delete = millis[6];
+            this.output = millis[7];
+        }
+    }
+
+    @Benchmark
+    public Object diff(Phases phases) throws Exception {
+        Object result = this.pipeline.diff();
+        phases.add(this.pipeline);
+        return result;
+    }
+}
@@ -0,0 +1,36 @@
+package hdiff.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing a page with a table of 50k rows, which has a single node with very many children
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParseBenchmark {
+    @Param({"table50000"})
+    public String document;
+
+    private Pipeline pipeline;
+
+    @Setup
+    public void setup() throws Exception {
+        this.pipeline = Stages.create(Pipeline.class, "PipelineStages", this.document);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.pipeline.close();
+    }
+
+    @Benchmark
+    public Object filenameToTree() throws Exception {
+        return this.pipeline.filenameToTree();
+    }
+}
@@ -0,0 +1,57 @@
+package hdiff.jmh;
+
+/**
+ * The stages of a diff of one pair of documents, as measured by the PipelineBenchmark. HDiff lives in the unnamed
+ * package, which a benchmark in a named package cannot refer to, so the stages are implemented by PipelineStages in
+ * the unnamed package, and created with Stages.create
+ */
+public interface Pipeline {
+    /**
+     * Collect the texts and tails of the matched nodes that the Differ would diff
+     *
+     * @throws Exception .
+     */
+    void collectTexts() throws Exception;
+
+    Object filenameToTree() throws Exception;
+
+    Object readStoredTree() throws Exception;
+
+    Object match() throws Exception;
+
+    Object bestMatch() throws Exception;
+
+    /**
+     * @param granularity The name of a TextDiffer.Granularity
+     * @return The total length of the diffs of the collected texts
+     */
+    int diffTexts(String granularity);
+
+    Object output() throws Exception;
+
+    Object outputToStream() throws Exception;
+
+    Object legacyOutput() throws Exception;
+
+    /**
+     * Read a fresh copy of the old tree, as the Differ edits the old tree into the new tree
+     *
+     * @throws Exception .
+     */
+    void prepareDiff() throws Exception;
+
+    Object diff() throws Exception;
+
+    /**
+     * @param phase The name of a Differ.Phase
+     * @return The time of the phase in the last diff, in nanoseconds
+     */
+    long phaseNanos(String phase);
+
+    /**
+     * Delete the temporary files
+     *
+     * @throws Exception .
+     */
+    void close() throws Exception;
+}
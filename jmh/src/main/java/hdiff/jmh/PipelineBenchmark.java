@@ -0,0 +1,83 @@
+package hdiff.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures every stage of a diff on its own: parsing, reading a stored tree, matching, the TextDiffer and the
+ * Outputter, which is compared with the LegacyOutputter, on the pairs in examples/ and on synthetic documents of 1k,
+ * 10k and 100k elements. The phases of the Differ are measured by the DiffBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PipelineBenchmark {
+    @Param({"page1", "page2", "page3", "papa", "synthetic1000", "synthetic10000", "synthetic100000"})
+    public String document;
+
+    private Pipeline pipeline;
+
+    @Setup
+    public void setup() throws Exception {
+        this.pipeline = Stages.create(Pipeline.class, "PipelineStages", this.document);
+        this.pipeline.collectTexts();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.pipeline.close();
+    }
+
+    /**
+     * The granularity of the TextDiffer
+     */
+    @State(Scope.Thread)
+    public static class Granularity {
+        @Param({"Char", "Word", "Sentence"})
+        public String granularity;
+    }
+
+    @Benchmark
+    public Object filenameToTree() throws Exception {
+        return this.pipeline.filenameToTree();
+    }
+
+    @Benchmark
+    public Object readStoredTree() throws Exception {
+        return this.pipeline.readStoredTree();
+    }
+
+    @Benchmark
+    public Object match() throws Exception {
+        return this.pipeline.match();
+    }
+
+    @Benchmark
+    public Object bestMatch() throws Exception {
+        return this.pipeline.bestMatch();
+    }
+
+    @Benchmark
+    public int textDiffer(Granularity granularity) {
+        return this.pipeline.diffTexts(granularity.granularity);
+    }
+
+    @Benchmark
+    public Object output() throws Exception {
+        return this.pipeline.output();
+    }
+
+    @Benchmark
+    public Object outputToStream() throws Exception {
+        return this.pipeline.outputToStream();
+    }
+
+    @Benchmark
+    public Object legacyOutput() throws Exception {
+        return this.pipeline.legacyOutput();
+    }
+}
@@ -0,0 +1,21 @@
+package hdiff.jmh;
+
+/**
+ * Creates the implementations of Pipeline and Trees in the unnamed package
+ */
+final class Stages {
+    private Stages() {
+    }
+
+    /**
+     * @param type      The interface
+     * @param className The name of the implementation
+     * @param document  The name of the document, which is passed to the constructor of the implementation
+     * @param <T>       The interface
+     * @return A new instance of the implementation
+     * @throws Exception Thrown when the implementation cannot be created, like when the document is unknown
+     */
+    static <T> T create(Class<T> type, String className, String document) throws Exception {
+        return type.cast(Class.forName(className).getConstructor(String.class).newInstance(document));
+    }
+}
@@ -0,0 +1,63 @@
+package hdiff.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the tree operations that are executed most often while diffing, on the old version of the pairs in
+ * examples/. iterateChildren and iterateCopiedChildren compare the cached child lists with copying the children on
+ * every call; run with -prof gc to see the allocation of both
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TreeBenchmark {
+    @Param({"page1", "page2", "page3", "papa"})
+    public String document;
+
+    private Trees trees;
+
+    @Setup
+    public void setup() throws Exception {
+        this.trees = Stages.create(Trees.class, "TreeStages", this.document);
+    }
+
+    @Benchmark
+    public Object breadthFirstSearch() {
+        return this.trees.breadthFirstSearch();
+    }
+
+    @Benchmark
+    public Object postOrderTraverse() {
+        return this.trees.postOrderTraverse();
+    }
+
+    @Benchmark
+    public Object reversePostOrderTraverse() {
+        return this.trees.reversePostOrderTraverse();
+    }
+
+    @Benchmark
+    public int getNrOfLeafsInSubtree() {
+        return this.trees.nrOfLeafsInSubtrees();
+    }
+
+    @Benchmark
+    public boolean isEqualTo() {
+        return this.trees.isEqualTo();
+    }
+
+    @Benchmark
+    public int iterateChildren() {
+        return this.trees.iterateChildren();
+    }
+
+    @Benchmark
+    public int iterateCopiedChildren() {
+        return this.trees.iterateCopiedChildren();
+    }
+}
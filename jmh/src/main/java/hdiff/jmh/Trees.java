@@ -0,0 +1,27 @@
+package hdiff.jmh;
+
+/**
+ * The tree operations of one document, as measured by the TreeBenchmark, see Pipeline
+ */
+public interface Trees {
+    Object breadthFirstSearch();
+
+    Object postOrderTraverse();
+
+    Object reversePostOrderTraverse();
+
+    int nrOfLeafsInSubtrees();
+
+    boolean isEqualTo();
+
+    /**
+     * @return The content size of the children of all nodes, iterated through the cached child lists
+     */
+    int iterateChildren();
+
+    /**
+     * @return The content size of the children of all nodes, iterated through a new list of the children per node, like
+     * getCustomChildren did before it cached the lists
+     */
+    int iterateCopiedChildren();
+}
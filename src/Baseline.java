@@ -0,0 +1,59 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The baseline of a page that is diffed over and over against its next version, like every hour. It holds the tree
+ * of the last version of the page, stored by the TreeSerializer together with its subtree hashes. The next diff
+ * reads the old version from the baseline instead of cleaning and parsing it again, and doesn't hash it again.
+ * The Matcher matches the subtrees with equal hashes up front, so only the subtrees that changed are matched
+ * node by node and visited by the phases of the Differ.
+ */
+class Baseline {
+    private File file;
+
+    /**
+     * @param filename The file that holds the baseline. It doesn't need to exist yet
+     */
+    Baseline(String filename) {
+        this.file = new File(filename);
+    }
+
+    boolean exists() {
+        return this.file.isFile();
+    }
+
+    /**
+     * Read the tree of the baseline. The file is memory-mapped instead of copied to the heap first
+     *
+     * @return The root of the tree
+     * @throws IOException Thrown when the baseline cannot be read, or is corrupt
+     */
+    CustomElement load() throws IOException {
+        return TreeSerializer.read(this.file);
+    }
+
+    /**
+     * Replace the tree of the baseline. The tree is written to a temporary file first, such that the baseline is
+     * never left half written
+     *
+     * @param root The root of the tree. It should not be edited by the Differ, so it must be the right tree of a diff
+     * @throws IOException Thrown when the baseline cannot be written
+     */
+    void save(CustomElement root) throws IOException {
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(this.file.getName(), ".tmp", directory);
+        try {
+            try (OutputStream out = new FileOutputStream(temporary)) {
+                TreeSerializer.write(root, out);
+            }
+            Files.move(temporary.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+}
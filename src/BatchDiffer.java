@@ -0,0 +1,261 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Diffs all pages of two snapshots. The pages are diffed in parallel by a bounded pool of workers, each page with a
+ * fresh Differ. A page that takes longer than the timeout is interrupted, and pages are only started when the
+ * estimated memory they need fits in the memory budget. Pages that are too large for the memory cap are not diffed
+ * at all. The result of every page is written to a manifest in the output directory.
+ * Snapshots are either folders with one file per page, or a SnapshotManifest with blobs. When both snapshots have a
+ * manifest, pages with equal content hashes are unchanged, and they are not parsed at all.
+ */
+class BatchDiffer {
+    /**
+     * The estimated number of bytes of heap needed per byte of input while diffing. Parsing creates several copies
+     * of a page, and the trees and the matching are about twenty times larger than the html
+     */
+    private static final long MEMORY_PER_INPUT_BYTE = 40;
+    /**
+     * The unit in which the memory budget is divided
+     */
+    private static final long MEGABYTE = 1 << 20;
+    /**
+     * The name of the manifest in the output directory
+     */
+    static final String MANIFEST = "manifest.tsv";
+
+    /**
+     * The result of diffing a page
+     */
+    enum Status {Changed, Unchanged, Failed}
+
+    /**
+     * The result, the number of EditActions and the time needed for a page
+     */
+    static class PageResult {
+        private String page;
+        private Status status;
+        private int actions;
+        private long millis;
+        private String error;
+
+        PageResult(String page, Status status, int actions, long millis, String error) {
+            this.page = page;
+            this.status = status;
+            this.actions = actions;
+            this.millis = millis;
+            this.error = error;
+        }
+
+        String getPage() {
+            return this.page;
+        }
+
+        Status getStatus() {
+            return this.status;
+        }
+
+        int getActions() {
+            return this.actions;
+        }
+
+        long getMillis() {
+            return this.millis;
+        }
+
+        String getError() {
+            return this.error;
+        }
+    }
+
+    private Double F, T;
+    /**
+     * The number of pages that are diffed at the same time
+     */
+    private int threads;
+    /**
+     * The maximum time a page may take, in milliseconds
+     */
+    private long timeout;
+    /**
+     * The maximum estimated memory a page may need, in bytes
+     */
+    private long memoryCap;
+
+    /**
+     * @param f         Minimum similarity regarding the attributes, see Differ
+     * @param t         Minimum similarity regarding the children, see Differ
+     * @param threads   The number of pages that are diffed at the same time
+     * @param timeout   The maximum time a page may take, in milliseconds
+     * @param memoryCap The maximum estimated memory a page may need, in bytes
+     */
+    BatchDiffer(Double f, Double t, int threads, long timeout, long memoryCap) {
+        this.F = f;
+        this.T = t;
+        this.threads = Math.max(1, threads);
+        this.timeout = timeout;
+        this.memoryCap = memoryCap;
+    }
+
+    /**
+     * Diff every page in dir1 with the page with the same name in dir2, and write the results and the manifest to
+     * outputdir. Pages that only occur in dir1 are skipped
+     *
+     * @param dir1      Directory holding snapshot 1
+     * @param dir2      Directory holding snapshot 2
+     * @param outputdir Output directory
+     * @return The results, ordered by page name
+     * @throws IOException          Thrown when a directory cannot be read, or the manifest cannot be written
+     * @throws InterruptedException Thrown when the batch is interrupted
+     */
+    ArrayList<PageResult> diff(String dir1, String dir2, String outputdir) throws IOException, InterruptedException {
+        SnapshotManifest manifest1 = SnapshotManifest.read(new File(dir1));
+        SnapshotManifest manifest2 = SnapshotManifest.read(new File(dir2));
+        TreeMap<String, File> pages1 = pages(dir1, manifest1), pages2 = pages(dir2, manifest2);
+        //The memory budget of all workers together, in megabytes. It is never larger than the heap can provide
+        long budget = Math.min(this.threads * this.memoryCap, Runtime.getRuntime().maxMemory() / 4 * 3) / MEGABYTE;
+        int permits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget));
+        Semaphore memory = new Semaphore(permits, true);
+        ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+        ArrayList<Future<PageResult>> futures = new ArrayList<>();
+        try {
+            for (Map.Entry<String, File> page : pages1.entrySet()) {
+                String name = page.getKey();
+                File left = page.getValue(), right = pages2.get(name);
+                if (right == null)
+                    continue;
+                if (manifest1 != null && manifest2 != null &&
+                        manifest1.get(name).getHash().equals(manifest2.get(name).getHash()))
+                    futures.add(CompletableFuture.completedFuture(new PageResult(name, Status.Unchanged, 0, 0, null)));
+                else
+                    futures.add(workers.submit(() -> this.diffPage(name, left, right, new File(outputdir, name),
+                            memory, permits, watchdog)));
+            }
+            ArrayList<PageResult> results = new ArrayList<>();
+            for (Future<PageResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {//diffPage catches everything, so this doesn't happen
+                    throw new IOException(e.getCause());
+                }
+            }
+            writeManifest(results, new File(outputdir, MANIFEST));
+            return results;
+        } finally {
+            workers.shutdownNow();
+            watchdog.shutdownNow();
+        }
+    }
+
+    /**
+     * Return the files of the pages of a snapshot
+     *
+     * @param dir      The snapshot folder
+     * @param manifest The manifest of the snapshot, or null if it holds one file per page
+     * @return The files, mapped by the names of the pages
+     * @throws IOException Thrown when the folder cannot be read
+     */
+    private static TreeMap<String, File> pages(String dir, SnapshotManifest manifest) throws IOException {
+        TreeMap<String, File> pages = new TreeMap<>();
+        if (manifest != null) {
+            for (String page : manifest.getPages())
+                pages.put(page, manifest.getBlob(page));
+            return pages;
+        }
+        File[] files = new File(dir).listFiles(File::isFile);
+        if (files == null)
+            throw new IOException("Cannot read snapshot " + dir);
+        for (File file : files)
+            pages.put(file.getName(), file);
+        return pages;
+    }
+
+    /**
+     * Diff one page. This is executed by a worker
+     *
+     * @param page     The name of the page
+     * @param left     The old page
+     * @param right    The new page
+     * @param output   The output file
+     * @param memory   The memory budget, in megabytes
+     * @param budget   The size of the memory budget
+     * @param watchdog Used to interrupt the worker when the timeout is exceeded
+     * @return The result
+     */
+    private PageResult diffPage(String page, File left, File right, File output, Semaphore memory, int budget,
+                                ScheduledExecutorService watchdog) {
+        long needed = (left.length() + right.length()) * MEMORY_PER_INPUT_BYTE;
+        if (needed > this.memoryCap)
+            return new PageResult(page, Status.Failed, 0, 0, String.format("Needs an estimated %d MB, the cap is %d MB",
+                    needed / MEGABYTE, this.memoryCap / MEGABYTE));
+        int permits = (int) Math.max(1, Math.min(budget, needed / MEGABYTE));
+        try {
+            memory.acquire(permits);
+        } catch (InterruptedException e) {
+            return new PageResult(page, Status.Failed, 0, 0, "Interrupted");
+        }
+        //The watchdog interrupts the worker if the diff is still running after the timeout. Libraries that are
+        // interrupted don't always throw an InterruptedException, so the watchdog also records that it fired
+        Thread worker = Thread.currentThread();
+        boolean[] finished = {false}, timedOut = {false};
+        ScheduledFuture<?> interrupt = watchdog.schedule(() -> {
+            synchronized (finished) {
+                if (!finished[0]) {
+                    timedOut[0] = true;
+                    worker.interrupt();
+                }
+            }
+        }, this.timeout, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        try {
+            ArrayList<EditAction> actions = new Differ(this.F, this.T).diff(left.getPath(), right.getPath(), output.getPath());
+            return new PageResult(page, actions.size() > 0 ? Status.Changed : Status.Unchanged, actions.size(),
+                    (System.nanoTime() - start) / 1000000, null);
+        } catch (Exception | OutOfMemoryError e) {
+            synchronized (finished) {
+                finished[0] = true;
+                return new PageResult(page, Status.Failed, 0, (System.nanoTime() - start) / 1000000,
+                        timedOut[0] ? String.format("Timed out after %d ms", this.timeout) : e.toString());
+            }
+        } finally {
+            interrupt.cancel(false);
+            synchronized (finished) {
+                finished[0] = true;
+            }
+            Thread.interrupted();//Clear an interrupt that came in just before the diff finished
+            memory.release(permits);
+        }
+    }
+
+    /**
+     * Write the manifest: one line per page with its status, the number of EditActions, the time in milliseconds
+     * and the error, separated by tabs. The manifest starts with a summary
+     *
+     * @param results The results
+     * @param file    The manifest file
+     * @throws IOException Thrown when the file cannot be written
+     */
+    private static void writeManifest(ArrayList<PageResult> results, File file) throws IOException {
+        EnumMap<Status, Integer> counts = new EnumMap<>(Status.class);
+        long totalMillis = 0;
+        for (PageResult result : results) {
+            counts.merge(result.getStatus(), 1, Integer::sum);
+            totalMillis += result.getMillis();
+        }
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            out.println(String.format("# %d pages: %d changed, %d unchanged, %d failed, %d ms in total", results.size(),
+                    counts.getOrDefault(Status.Changed, 0), counts.getOrDefault(Status.Unchanged, 0),
+                    counts.getOrDefault(Status.Failed, 0), totalMillis));
+            out.println("page\tstatus\tactions\tmillis\terror");
+            for (PageResult result : results)
+                out.println(String.join("\t", result.getPage(), result.getStatus().toString(),
+                        Integer.toString(result.getActions()), Long.toString(result.getMillis()),
+                        result.getError() == null ? "" : result.getError().replaceAll("\\s+", " ")));
+        }
+    }
+}
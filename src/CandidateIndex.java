@@ -0,0 +1,242 @@
+import java.util.*;
+
+/**
+ * An index over the nodes of the right tree. It is built once before matching, such that the Matcher only needs to
+ * compare a left node with a bounded shortlist of plausible partners, instead of with every node of the right tree.
+ * Nodes are indexed by their tag name, their id, their class tokens, their other attribute values, and by MinHash
+ * signatures of the shingles in their text and tail (https://en.wikipedia.org/wiki/MinHash).
+ */
+class CandidateIndex {
+    /**
+     * The maximum number of candidates that is returned for a left node
+     */
+    private static final int MAX_CANDIDATES = 64;
+    /**
+     * Posting lists larger than this are not scanned completely. Only the nodes closest to the expected position of
+     * the left node are used, such that very common tags or classes don't make a lookup linear again
+     */
+    private static final int MAX_POSTING_SCAN = 256;
+    /**
+     * The number of nodes on each side of the expected position that are taken from a large posting list
+     */
+    private static final int POSTING_WINDOW = 32;
+    /**
+     * The length of the character shingles of a text
+     */
+    private static final int SHINGLE_SIZE = 3;
+    /**
+     * The number of hash functions in a MinHash signature, and the number of them that are combined into one band.
+     * Two texts share a band key with a high probability when their shingle sets are similar
+     */
+    private static final int NR_OF_HASHES = 16, ROWS_PER_BAND = 2;
+    /**
+     * The weight of the keys. A match on an identifying key counts heavier than a match on the tag name
+     */
+    private static final int TAG_VOTE = 1, KEY_VOTE = 2, PARENT_VOTE = 3;
+
+    /**
+     * The right tree
+     */
+    private FlatTree tree;
+    /**
+     * The right nodes in the index, in post order. The expected position of a partner, and the distance to it, are
+     * measured in positions in this array
+     */
+    private int[] nodes;
+    /**
+     * The position of each right node in this.nodes, or -1
+     */
+    private int[] positions;
+    /**
+     * Maps each key to the positions of the nodes having that key, in ascending order
+     */
+    private HashMap<String, ArrayList<Integer>> postings;
+    /**
+     * Used while collecting candidates; the number of votes for each position. Every thread that looks up
+     * candidates has its own array, so the Matcher can look up candidates in parallel
+     */
+    private ThreadLocal<int[]> votes;
+
+    /**
+     * Build the index
+     *
+     * @param tree  The right tree
+     * @param nodes The right nodes that can be matched, in post order. It may contain unidentifiable leafs, which are
+     *              never returned as candidates, but do count for the positions
+     */
+    CandidateIndex(FlatTree tree, int[] nodes) {
+        this.tree = tree;
+        this.nodes = nodes;
+        this.positions = new int[tree.size()];
+        Arrays.fill(this.positions, -1);
+        this.postings = new HashMap<>();
+        this.votes = ThreadLocal.withInitial(() -> new int[nodes.length]);
+        for (int i = 0; i < nodes.length; i++) {
+            int node = nodes[i];
+            this.positions[node] = i;
+            if (tree.isUnidentifiableLeaf(node))//The Matcher skips these nodes
+                continue;
+            addPosting("tag:" + tree.getPool().get(tree.getTag(node)), i);
+            for (String key : keys(tree, node))
+                addPosting(key, i);
+        }
+    }
+
+    private void addPosting(String key, int position) {
+        ArrayList<Integer> list = this.postings.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            this.postings.put(key, list);
+        }
+        if (list.size() <= 0 || list.get(list.size() - 1) != position)
+            list.add(position);
+    }
+
+    /**
+     * Return the shortlist of right nodes that could be a partner of a left node. The right nodes are ranked by the
+     * number of keys they share with the left node. Nodes that contain the partners of the left node's children are
+     * always favoured, as these have a high child similarity. Ties are broken by the distance to the expected
+     * position of the partner.
+     *
+     * @param leftTree         The left tree
+     * @param left             The left node
+     * @param relativePosition The position of the left node in the post order of the left tree, between 0 and 1
+     * @param matching         The current partners of the left nodes
+     * @return The candidates, in post order
+     */
+    int[] candidates(FlatTree leftTree, int left, double relativePosition, Matching matching) {
+        int expected = (int) (relativePosition * (this.nodes.length - 1));
+        int[] votes = this.votes.get();
+        ArrayList<Integer> touched = new ArrayList<>();
+        vote(this.postings.get("tag:" + leftTree.getPool().get(leftTree.getTag(left))), TAG_VOTE, expected, votes, touched);
+        for (String key : keys(leftTree, left))
+            vote(this.postings.get(key), KEY_VOTE, expected, votes, touched);
+        for (int child = leftTree.getFirstChild(left); child >= 0; child = leftTree.getNextSibling(child)) {
+            int partner = matching.getRightPartner(child);
+            if (partner == Matching.NONE)
+                continue;
+            int parent = this.tree.getParent(partner);
+            if (parent >= 0 && this.positions[parent] >= 0)
+                addVote(this.positions[parent], PARENT_VOTE, votes, touched);
+        }
+        touched.sort((a, b) -> {
+            if (votes[a] != votes[b])
+                return votes[b] - votes[a];
+            return Math.abs(a - expected) - Math.abs(b - expected);
+        });
+        int[] result = new int[Math.min(MAX_CANDIDATES, touched.size())];
+        for (int i = 0; i < result.length; i++)
+            result[i] = touched.get(i);
+        Arrays.sort(result);
+        for (int i = 0; i < result.length; i++)
+            result[i] = this.nodes[result[i]];
+        //Reset the votes for the next lookup
+        for (int position : touched)
+            votes[position] = 0;
+        return result;
+    }
+
+    /**
+     * Add a vote to all nodes in a posting list. Large lists are only scanned around the expected position
+     *
+     * @param posting  The posting list, might be null
+     * @param weight   The number of votes to add
+     * @param expected The expected position of the partner
+     * @param votes    The number of votes for each position
+     * @param touched  The positions that received votes so far
+     */
+    private void vote(ArrayList<Integer> posting, int weight, int expected, int[] votes, ArrayList<Integer> touched) {
+        if (posting == null)
+            return;
+        int from = 0, to = posting.size();
+        if (posting.size() > MAX_POSTING_SCAN) {
+            int center = Collections.binarySearch(posting, expected);
+            if (center < 0)
+                center = -center - 1;
+            from = Math.max(0, center - POSTING_WINDOW);
+            to = Math.min(posting.size(), center + POSTING_WINDOW);
+        }
+        for (int i = from; i < to; i++)
+            addVote(posting.get(i), weight, votes, touched);
+    }
+
+    private static void addVote(int position, int weight, int[] votes, ArrayList<Integer> touched) {
+        if (votes[position] == 0)
+            touched.add(position);
+        votes[position] += weight;
+    }
+
+    /**
+     * Create the identifying keys of a node: its id, its class tokens, its other attribute values and the bands of
+     * the MinHash signature of its text and tail
+     *
+     * @param tree The tree of the node
+     * @param node The node
+     * @return The keys
+     */
+    private static ArrayList<String> keys(FlatTree tree, int node) {
+        ArrayList<String> result = new ArrayList<>();
+        StringPool pool = tree.getPool();
+        for (int k = 0; k < tree.getAttributeCount(node); k++) {
+            String name = pool.get(tree.getAttributeName(node, k));
+            String value = pool.get(tree.getAttributeValue(node, k));
+            switch (name) {
+                case "id":
+                    result.add("id:" + value);
+                    break;
+                case "class":
+                    for (String c : value.split(" "))
+                        if (!c.equals(""))
+                            result.add("class:" + c);
+                    break;
+                default:
+                    result.add("attr:" + name + "=" + value);
+                    break;
+            }
+        }
+        String text = (pool.get(tree.getText(node)) + " " + pool.get(tree.getTail(node))).trim().toLowerCase();
+        if (!text.equals("")) {
+            int[] signature = minHash(text);
+            for (int band = 0; band < NR_OF_HASHES / ROWS_PER_BAND; band++) {
+                StringBuilder sb = new StringBuilder("text:").append(band);
+                for (int row = 0; row < ROWS_PER_BAND; row++)
+                    sb.append(':').append(signature[band * ROWS_PER_BAND + row]);
+                result.add(sb.toString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Calculate the MinHash signature of the shingles of a text. Texts shorter than a shingle are one shingle
+     *
+     * @param text The text
+     * @return The signature
+     */
+    private static int[] minHash(String text) {
+        int[] signature = new int[NR_OF_HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int nrOfShingles = Math.max(1, text.length() - SHINGLE_SIZE + 1);
+        for (int s = 0; s < nrOfShingles; s++) {
+            int shingle = text.substring(s, Math.min(text.length(), s + SHINGLE_SIZE)).hashCode();
+            for (int i = 0; i < NR_OF_HASHES; i++)
+                signature[i] = Math.min(signature[i], mix(shingle * (2 * i + 1) + i * 0x9E3779B9));
+        }
+        return signature;
+    }
+
+    /**
+     * The finalization step of MurmurHash3, used to derive the hash functions of the MinHash signature
+     *
+     * @param h The value to hash
+     * @return The hash
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,300 @@
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An order statistic index over the children of a CustomElement, including its deleted children. The children are
+ * the entries of a treap that is ordered by their position, and every entry holds the size of its subtree and three
+ * counts of its subtree: the children that are not deleted, that are in order, and that are in order or unmatched, see
+ * the Differ. With these, the position of a child among the non-deleted children, the rightmost in order child on the
+ * left of a child, and the position at which a child has to be inserted are found in O(log n) instead of by scanning
+ * the children. The index is maintained while children are inserted and removed, and when a child is (un)marked as
+ * deleted, in order or matched, which all take O(log n) as well.
+ * The index is created when it is first needed. Changes that it cannot follow, like replacing a child, drop it
+ */
+class ChildIndex {
+    /**
+     * The counts of an entry, see weight. SIZE is the number of entries in the subtree
+     */
+    private static final int NOT_DELETED = 0, IN_ORDER = 1, IN_ORDER_OR_UNMATCHED = 2, SIZE = 3;
+
+    /**
+     * A child in the treap
+     */
+    static class Entry {
+        private CustomElement child;
+        private Entry left, right, parent;
+        private int priority;
+        /**
+         * The weights of the child, one bit per count
+         */
+        private int weight;
+        /**
+         * The counts of the subtree rooted at this entry, including the entry itself
+         */
+        private int[] counts = new int[4];
+
+        private Entry(CustomElement child) {
+            this.child = child;
+            this.priority = ThreadLocalRandom.current().nextInt();
+            this.weight = weight(child);
+        }
+    }
+
+    private Entry root;
+
+    /**
+     * Create the index of the children of an element in O(n). The entry of every child is saved in the child
+     *
+     * @param children All children of the element, including the deleted children
+     */
+    ChildIndex(List<CustomElement> children) {
+        //Build a Cartesian tree on the priorities, keeping the right spine on a stack
+        ArrayDeque<Entry> spine = new ArrayDeque<>();
+        for (CustomElement child : children) {
+            Entry entry = new Entry(child);
+            child.setIndexEntry(entry);
+            Entry last = null;
+            while (!spine.isEmpty() && spine.peek().priority < entry.priority)
+                last = spine.pop();
+            entry.left = last;
+            if (last != null)
+                last.parent = entry;
+            if (!spine.isEmpty()) {
+                spine.peek().right = entry;
+                entry.parent = spine.peek();
+            }
+            spine.push(entry);
+        }
+        this.root = spine.peekLast();
+        pullSubtree(this.root);
+    }
+
+    /**
+     * @return The weights of a child: one bit for every count in which it is counted
+     */
+    private static int weight(CustomElement child) {
+        if (child.isDeleted())
+            return 0;
+        int weight = 1 << NOT_DELETED;
+        if (child.isInOrder())
+            weight |= 1 << IN_ORDER;
+        if (child.isInOrder() || !child.isMatched())
+            weight |= 1 << IN_ORDER_OR_UNMATCHED;
+        return weight;
+    }
+
+    private static int count(Entry entry, int count) {
+        return entry == null ? 0 : entry.counts[count];
+    }
+
+    private static int own(Entry entry, int count) {
+        return count == SIZE ? 1 : (entry.weight >> count) & 1;
+    }
+
+    /**
+     * Calculate the counts of an entry from its children
+     */
+    private static void pull(Entry entry) {
+        for (int c = 0; c < entry.counts.length; c++)
+            entry.counts[c] = count(entry.left, c) + own(entry, c) + count(entry.right, c);
+    }
+
+    private static void pullSubtree(Entry entry) {
+        if (entry != null) {
+            pullSubtree(entry.left);
+            pullSubtree(entry.right);
+            pull(entry);
+        }
+    }
+
+    /**
+     * Calculate the counts of an entry and of all its ancestors again
+     */
+    private static void pullPath(Entry entry) {
+        for (; entry != null; entry = entry.parent)
+            pull(entry);
+    }
+
+    /**
+     * Split a treap
+     *
+     * @param entry The root of the treap
+     * @param k     The number of entries of the first part
+     * @return The roots of the first k entries and of the other entries
+     */
+    private static Entry[] split(Entry entry, int k) {
+        if (entry == null)
+            return new Entry[2];
+        Entry[] parts;
+        if (count(entry.left, SIZE) >= k) {
+            parts = split(entry.left, k);
+            entry.left = parts[1];
+            if (parts[1] != null)
+                parts[1].parent = entry;
+            parts[1] = entry;
+        } else {
+            parts = split(entry.right, k - count(entry.left, SIZE) - 1);
+            entry.right = parts[0];
+            if (parts[0] != null)
+                parts[0].parent = entry;
+            parts[0] = entry;
+        }
+        pull(entry);
+        entry.parent = null;
+        return parts;
+    }
+
+    /**
+     * Merge two treaps, of which all entries of a come before the entries of b
+     *
+     * @return The root of the merged treap
+     */
+    private static Entry merge(Entry a, Entry b) {
+        if (a == null || b == null)
+            return a == null ? b : a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            a.right.parent = a;
+            pull(a);
+            return a;
+        }
+        b.left = merge(a, b.left);
+        b.left.parent = b;
+        pull(b);
+        return b;
+    }
+
+    /**
+     * Insert a child
+     *
+     * @param child    The child
+     * @param position The position among all children
+     */
+    void insert(CustomElement child, int position) {
+        Entry entry = new Entry(child);
+        pull(entry);
+        child.setIndexEntry(entry);
+        Entry[] parts = split(this.root, position);
+        this.root = merge(merge(parts[0], entry), parts[1]);
+        this.root.parent = null;
+    }
+
+    /**
+     * Remove a child
+     *
+     * @param child The child
+     */
+    void remove(CustomElement child) {
+        Entry entry = child.getIndexEntry();
+        Entry merged = merge(entry.left, entry.right);
+        Entry parent = entry.parent;
+        if (merged != null)
+            merged.parent = parent;
+        if (parent == null)
+            this.root = merged;
+        else if (parent.left == entry)
+            parent.left = merged;
+        else
+            parent.right = merged;
+        pullPath(parent);
+        child.setIndexEntry(null);
+    }
+
+    /**
+     * Update the weights of a child, after it is (un)marked as deleted, in order or matched
+     *
+     * @param child The child
+     */
+    void update(CustomElement child) {
+        Entry entry = child.getIndexEntry();
+        entry.weight = weight(child);
+        pullPath(entry);
+    }
+
+    /**
+     * @return The number of children before a child that are counted in a count
+     */
+    private static int countBefore(Entry entry, int count) {
+        int sum = count(entry.left, count);
+        for (; entry.parent != null; entry = entry.parent)
+            if (entry.parent.right == entry)
+                sum += count(entry.parent.left, count) + own(entry.parent, count);
+        return sum;
+    }
+
+    /**
+     * @return The k-th child, counting from 1, that is counted in a count
+     */
+    private Entry select(int count, int k) {
+        Entry entry = this.root;
+        while (true) {
+            int left = count(entry.left, count);
+            if (k <= left)
+                entry = entry.left;
+            else if (k == left + own(entry, count) && own(entry, count) == 1)
+                return entry;
+            else {
+                k -= left + own(entry, count);
+                entry = entry.right;
+            }
+        }
+    }
+
+    /**
+     * @param child A child
+     * @return The position of the child among all children
+     */
+    int positionOf(CustomElement child) {
+        return countBefore(child.getIndexEntry(), SIZE);
+    }
+
+    /**
+     * @param child A child that is not deleted
+     * @return The position of the child among the non-deleted children
+     */
+    int indexOf(CustomElement child) {
+        return countBefore(child.getIndexEntry(), NOT_DELETED);
+    }
+
+    /**
+     * @param child A child
+     * @return The rightmost non-deleted child on the left of child that is in order, or null if there is none
+     */
+    CustomElement getInOrderChildBefore(CustomElement child) {
+        int k = countBefore(child.getIndexEntry(), IN_ORDER);
+        return k == 0 ? null : this.select(IN_ORDER, k).child;
+    }
+
+    /**
+     * Count the non-deleted children up to and including a child that are in order, or unmatched
+     *
+     * @param last The child
+     * @param skip A node that is not counted, or null
+     * @return The number of children
+     */
+    int countInOrderOrUnmatched(CustomElement last, CustomElement skip) {
+        Entry entry = last.getIndexEntry();
+        int count = countBefore(entry, IN_ORDER_OR_UNMATCHED) + own(entry, IN_ORDER_OR_UNMATCHED);
+        if (skip != null && skip.getParentElement() == last.getParentElement() &&
+                own(skip.getIndexEntry(), IN_ORDER_OR_UNMATCHED) == 1 &&
+                this.positionOf(skip) <= this.positionOf(last))
+            count--;
+        return count;
+    }
+
+    /**
+     * Find the position in all children at which a child has to be inserted to become the index-th non-deleted child.
+     * It is inserted right after the previous non-deleted child, so before any deleted children that follow it
+     *
+     * @param index The position among the non-deleted children
+     * @return The position among all children, or -1 if there are less than index non-deleted children
+     */
+    int toContentIndex(int index) {
+        if (index == 0)
+            return 0;
+        if (index > count(this.root, NOT_DELETED))
+            return -1;
+        return this.positionOf(this.select(NOT_DELETED, index).child) + 1;
+    }
+}
@@ -1,6 +1,7 @@
 import org.jdom2.Attribute;
 import org.jdom2.Content;
 import org.jdom2.Element;
+import org.jdom2.Namespace;
 import org.jdom2.Text;
 
 import java.util.*;
@@ -35,14 +36,43 @@ public class CustomElement extends Element {
      * The number of leafs in the subtree rooted at this node
      */
     private int nrOfLeafsInSubtree = -1;
+    /**
+     * The hash of the subtree rooted at this node, 0 if it is not calculated yet
+     */
+    private long subtreeHash = 0;
+    /**
+     * The number of this node in the FlatTree that was last created of its tree
+     */
+    private int id = -1;
+    /**
+     * Cached views of the children, with and without the deleted children. They are created when they are first
+     * needed, and reset whenever the content of this element changes, or a child is (un)marked as deleted
+     */
+    private List<CustomElement> children, nonDeletedChildren;
+    /**
+     * The order statistic index of the children. It is created when it is first needed, and maintained while children
+     * are added and removed
+     */
+    private ChildIndex childIndex;
+    /**
+     * The entry of this node in the ChildIndex of its parent
+     */
+    private ChildIndex.Entry indexEntry;
+    /**
+     * Indicates whether this node is in order in its parent, and whether it has a partner in the other tree. These
+     * are set by the Differ, and counted by the ChildIndex of the parent
+     */
+    private boolean inOrder = false, matched = false;
+    /**
+     * The node of which this node is the ghost, or null, see ghost()
+     */
+    private CustomElement ghostOf;
 
     /**
      * Create a CustomElement, holding the values of the original Element, except for the parent and the text and tail
-     * The function is used in Utils.addChildrenToParent. The parents is not cloned because the parent of 'e' is a
-     * normal Element. e is transformed to a CustomElement and that element is set to be the parent of this
-     * CustomElement. Text and tails are not set as they will later be set by the function addChildrenToParent. We
-     * copy elements this way because we edit the tree structure to conform with the tree structure used in XMLDiff
-     * (https://xmldiff.readthedocs.io/) which uses the package etree.
+     * The function is used by clone(). The parent is not cloned, and text and tails are not set, as they are set by
+     * clone() itself. We copy elements this way because we edit the tree structure to conform with the tree structure
+     * used in XMLDiff (https://xmldiff.readthedocs.io/) which uses the package etree.
      *
      * @param e The original Element
      */
@@ -52,12 +82,52 @@ public class CustomElement extends Element {
         this.addNamespaceDeclaration(e.getNamespace());
         List<Attribute> attributes = e.getAttributes();
         for (Attribute a : attributes) {
-            this.setAttribute(a.getName(), a.getValue().replaceAll("\"", "&quot;"));
+            this.setAttribute(a.getName(), a.getValue());
         }
         this.removeAttribute("style");
         this.styleAttributes = Utils.styleStringToList(e.getAttributeValue("style"));
     }
 
+    /**
+     * Create a CustomElement without content, like CustomElement(Element), but from its parts. Used by TreeBuilder
+     *
+     * @param name       The name
+     * @param namespace  The namespace
+     * @param attributes The attributes, mapped by their local name, including the style attribute
+     * @param style      The value of the style attribute, or null
+     */
+    CustomElement(String name, Namespace namespace, LinkedHashMap<String, String> attributes, String style) {
+        this.name = name;
+        this.namespace = namespace;
+        this.addNamespaceDeclaration(namespace);
+        for (Map.Entry<String, String> a : attributes.entrySet())
+            this.setAttribute(a.getKey(), a.getValue());
+        this.removeAttribute("style");
+        this.styleAttributes = Utils.styleStringToList(style);
+    }
+
+    /**
+     * Create a ghost of this CustomElement, which is left at the old position of this element when it is moved. The
+     * ghost is a deleted element without attributes or content, that only refers to this element. The Outputter
+     * writes this element at the position of the ghost as well. Unlike a clone, the ghost takes constant time and
+     * memory, however large the subtree of this element is
+     *
+     * @return The ghost
+     */
+    CustomElement ghost() {
+        CustomElement ghost = new CustomElement(this.getName(), this.getNamespace(), new LinkedHashMap<>(), null);
+        ghost.isDeleted = true;
+        ghost.ghostOf = this;
+        return ghost;
+    }
+
+    /**
+     * @return The element of which this element is the ghost, or null if it isn't a ghost
+     */
+    CustomElement getGhostOf() {
+        return this.ghostOf;
+    }
+
     /**
      * Clone this CustomElement, copying all characteristics except the parent (and of course the EditActions and
      * Popuptexts als also skipped)
@@ -88,6 +158,14 @@ public class CustomElement extends Element {
         return this.styleAttributes.size() > 0;
     }
 
+    int getId() {
+        return this.id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
     HashMap<String, String> getStyleAttributes() {
         return this.styleAttributes;
     }
@@ -125,19 +203,138 @@ public class CustomElement extends Element {
 
     /**
      * Return a list of the children, as CustomElements instead of Elements. We are sure that all children
-     * actually are of type CustomElement, as they are created in the function Utils.addChildrenToParent()
+     * actually are of type CustomElement, as they are created by the TreeBuilder
      *
      * @param returnDeletedChildren specifies whether 'deleted' children should be returned. This is only true
      *                              when called by the Outputter, which needs to show deleted children
-     * @return The list of children as CustomElements
+     * @return The list of children as CustomElements. The list is read-only, and shared by all callers until the
+     * children change
      */
     List<CustomElement> getCustomChildren(Boolean returnDeletedChildren) {
-        ArrayList<CustomElement> result = new ArrayList<>();
-        for (Element e : this.getChildren()) {
-            if (returnDeletedChildren || !((CustomElement) e).isDeleted)
-                result.add((CustomElement) e);
+        if (this.children == null) {
+            ArrayList<CustomElement> all = new ArrayList<>(this.getContentSize());
+            ArrayList<CustomElement> nonDeleted = new ArrayList<>(this.getContentSize());
+            for (Content c : this.getContent()) {
+                if (c instanceof CustomElement) {
+                    all.add((CustomElement) c);
+                    if (!((CustomElement) c).isDeleted)
+                        nonDeleted.add((CustomElement) c);
+                }
+            }
+            this.children = Collections.unmodifiableList(all);
+            this.nonDeletedChildren = all.size() == nonDeleted.size() ? this.children :
+                    Collections.unmodifiableList(nonDeleted);
+        }
+        return returnDeletedChildren ? this.children : this.nonDeletedChildren;
+    }
+
+    /**
+     * Reset the cached views of the children
+     */
+    private void resetChildren() {
+        this.children = null;
+        this.nonDeletedChildren = null;
+    }
+
+    /**
+     * @return The order statistic index of the children
+     */
+    private ChildIndex getChildIndex() {
+        if (this.childIndex == null)
+            this.childIndex = new ChildIndex(this.getCustomChildren(true));
+        return this.childIndex;
+    }
+
+    boolean isDeleted() {
+        return this.isDeleted;
+    }
+
+    boolean isInOrder() {
+        return this.inOrder;
+    }
+
+    boolean isMatched() {
+        return this.matched;
+    }
+
+    /**
+     * Mark this node as in order or not. The index of the parent is updated
+     *
+     * @param inOrder The value
+     */
+    void setInOrder(boolean inOrder) {
+        if (this.inOrder != inOrder) {
+            this.inOrder = inOrder;
+            this.updateParentIndex();
+        }
+    }
+
+    /**
+     * Mark this node as having a partner in the other tree or not. The index of the parent is updated
+     *
+     * @param matched The value
+     */
+    void setMatched(boolean matched) {
+        if (this.matched != matched) {
+            this.matched = matched;
+            this.updateParentIndex();
+        }
+    }
+
+    private void updateParentIndex() {
+        CustomElement parent = (CustomElement) this.getParentElement();
+        if (parent != null && parent.childIndex != null)
+            parent.childIndex.update(this);
+    }
+
+    ChildIndex.Entry getIndexEntry() {
+        return this.indexEntry;
+    }
+
+    void setIndexEntry(ChildIndex.Entry indexEntry) {
+        this.indexEntry = indexEntry;
+    }
+
+    /**
+     * Return the position of this node among the non-deleted children of its parent in O(log n), like
+     * getCustomChildren(false).indexOf(this)
+     *
+     * @return The position
+     */
+    int getIndexInParent() {
+        return ((CustomElement) this.getParentElement()).getChildIndex().indexOf(this);
+    }
+
+    /**
+     * @return The rightmost non-deleted sibling on the left of this node that is in order, or null if there is none
+     */
+    CustomElement getInOrderSiblingBefore() {
+        return ((CustomElement) this.getParentElement()).getChildIndex().getInOrderChildBefore(this);
+    }
+
+    /**
+     * Count the non-deleted siblings up to and including this node that are in order, or unmatched
+     *
+     * @param skip A node that is not counted, or null
+     * @return The number of siblings
+     */
+    int getNrOfInOrderOrUnmatchedSiblings(CustomElement skip) {
+        return ((CustomElement) this.getParentElement()).getChildIndex().countInOrderOrUnmatched(this, skip);
+    }
+
+    /**
+     * Set whether this element is deleted. The parent's view of its non-deleted children is reset, and its index is
+     * updated
+     *
+     * @param deleted The value
+     */
+    private void setDeleted(boolean deleted) {
+        boolean changed = this.isDeleted != deleted;
+        this.isDeleted = deleted;
+        if (changed && this.getParentElement() != null) {
+            ((CustomElement) this.getParentElement()).resetChildren();
+            this.updateParentIndex();
         }
-        return result;
     }
 
     /**
@@ -147,7 +344,7 @@ public class CustomElement extends Element {
      * @return The trimmed string
      */
     private String trim(String s) {
-        return s.replaceAll("\\s+", " ").trim();
+        return Utils.normalizeWhitespace(s);
     }
 
     /**
@@ -204,7 +401,7 @@ public class CustomElement extends Element {
      */
     ArrayList<EditAction> delete() {
         ArrayList<EditAction> childrensActions = new ArrayList<>();
-        this.isDeleted = true;
+        this.setDeleted(true);
         for (CustomElement child : this.getCustomChildren(true))
             childrensActions.addAll(child.unmarkAsDeleted());
         return childrensActions;
@@ -219,7 +416,7 @@ public class CustomElement extends Element {
      */
     ArrayList<EditAction> unmarkAsDeleted() {
         ArrayList<EditAction> result = new ArrayList<>();
-        this.isDeleted = false;
+        this.setDeleted(false);
         this.popupTexts = null;
         if (this.actions != null)
             result = new ArrayList(this.actions);
@@ -233,11 +430,20 @@ public class CustomElement extends Element {
      * Adds classes "edited"  and "deleted" if needed
      */
     void addClassesForOutputter() {
-        if (this.popupTexts != null) {
-            if (this.isDeleted)
-                this.addClass("deleted");
-            this.addClass("edited");
-        }
+        String classes = this.getEditClasses();
+        if (classes != null)
+            this.addClass(classes);
+    }
+
+    /**
+     * Return the classes that mark this element as edited in the output, without adding them to its class attribute
+     *
+     * @return "deleted edited" or "edited", or null if this element isn't edited
+     */
+    String getEditClasses() {
+        if (this.popupTexts == null)
+            return null;
+        return this.isDeleted ? "deleted edited" : "edited";
     }
 
     Boolean hasPopupTexts() {
@@ -262,8 +468,8 @@ public class CustomElement extends Element {
      * used by the TreeEditor to create a PopupText
      * @return The position
      */
-    Integer getPositionInParent() {
-        return this.getCustomParentElement().getCustomChildren(true).indexOf(this);
+    int getPositionInParent() {
+        return ((CustomElement) this.getParentElement()).getChildIndex().positionOf(this);
     }
 
     /**
@@ -331,6 +537,42 @@ public class CustomElement extends Element {
         return this.nrOfLeafsInSubtree;
     }
 
+    /**
+     * Return a Merkle-style hash of the subtree rooted at this node. It covers the tag, the attributes, the style
+     * attributes, the text, the tail and the hashes of the children, so two subtrees with equal hashes are equal.
+     * Like the number of leafs, the value is calculated once, before the tree is edited by the Differ
+     *
+     * @return The value
+     */
+    long getSubtreeHash() {
+        if (this.subtreeHash == 0) {
+            long attributes = 0;//The order of (style) attributes doesn't matter, so these hashes are summed
+            for (Attribute a : this.getAttributes())
+                attributes += Utils.combineHashes(Utils.hash(a.getName()), Utils.hash(a.getValue()));
+            long styles = 0;
+            for (Map.Entry<String, String> style : this.styleAttributes.entrySet())
+                styles += Utils.combineHashes(Utils.hash(style.getKey()), Utils.hash(style.getValue()));
+            long hash = Utils.hash(this.getName());
+            hash = Utils.combineHashes(hash, attributes);
+            hash = Utils.combineHashes(hash, styles);
+            hash = Utils.combineHashes(hash, Utils.hash(this.getCustomText()));
+            hash = Utils.combineHashes(hash, Utils.hash(this.getTail()));
+            for (CustomElement child : this.getCustomChildren(false))
+                hash = Utils.combineHashes(hash, child.getSubtreeHash());
+            this.subtreeHash = hash == 0 ? 1 : hash;
+        }
+        return this.subtreeHash;
+    }
+
+    /**
+     * Set the hash of the subtree rooted at this node, when it is known already, like when a stored tree is read
+     *
+     * @param subtreeHash The hash, see getSubtreeHash
+     */
+    void setSubtreeHash(long subtreeHash) {
+        this.subtreeHash = subtreeHash;
+    }
+
     /**
      * Count all deleted children before a certain element.
      * @param child the element
@@ -347,24 +589,49 @@ public class CustomElement extends Element {
         return count;
     }
 
+    /**
+     * JDOM calls this method before any content is added to this element, so we reset the cached children here, and
+     * insert the child in the index. A replaced child is not followed by the index, so the index is dropped then
+     */
     @Override
-    public Element addContent(int index, Content child) {
-        int adjustedIndex = index;
-        int currentAdjustedPos = 0;
-        int i = 0;
-        for(CustomElement e : this.getCustomChildren(true)){
-            if(currentAdjustedPos == index)
-                break;
-            else if(e.isDeleted)
-                adjustedIndex++;
+    public void canContainContent(Content child, int index, boolean replace) {
+        super.canContainContent(child, index, replace);
+        this.resetChildren();
+        if (this.childIndex != null) {
+            if (!replace && child instanceof CustomElement)
+                this.childIndex.insert((CustomElement) child, index);
             else
-                currentAdjustedPos++;
-        }
-        try{
-            return super.addContent(adjustedIndex, child);
-        }catch(Exception e){
-            return super.addContent(index, child);
+                this.childIndex = null;
         }
     }
 
+    @Override
+    public boolean removeContent(Content child) {
+        this.resetChildren();
+        if (this.childIndex != null && child instanceof CustomElement && child.getParent() == this)
+            this.childIndex.remove((CustomElement) child);
+        return super.removeContent(child);
+    }
+
+    @Override
+    public Content removeContent(int index) {
+        this.resetChildren();
+        if (this.childIndex != null && this.getContent(index) instanceof CustomElement)
+            this.childIndex.remove((CustomElement) this.getContent(index));
+        return super.removeContent(index);
+    }
+
+    /**
+     * Add a child at a position among the non-deleted children. Deleted children are skipped using the ChildIndex
+     *
+     * @param index The position among the non-deleted children
+     * @param child The child
+     * @return This element
+     */
+    @Override
+    public Element addContent(int index, Content child) {
+        int adjustedIndex = this.getChildIndex().toContentIndex(index);
+        return super.addContent(adjustedIndex < 0 ? index : adjustedIndex, child);
+    }
+
 }
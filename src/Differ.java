@@ -1,6 +1,7 @@
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
-import java.util.function.BiFunction;
 
 /**
  * This class performs the diffing algorithm described in the paper:
@@ -12,9 +13,14 @@ public class Differ {
      */
     private CustomElement left, right;
     /**
-     * Maps left nodes to matching right nodes and vice versa
+     * Matches left nodes to right nodes and vice versa
      */
-    private HashMap<CustomElement, CustomElement> l2r, r2l;
+    private Matching matching;
+    /**
+     * The position of every right node among the children that alignChildren aligns, by id, or -1. The positions
+     * are reset after every alignment
+     */
+    private int[] rightPositions;
     /**
      * Defines the minimum similarity between two leafs for them to be equal
      */
@@ -24,19 +30,85 @@ public class Differ {
      */
     private double T;
     /**
-     * Set of nodes that are ordered in its parent
+     * Nodes in subtrees that are identical in left and right. The descendants of these nodes are not visited
      */
-    private Set<CustomElement> inorder;
+    private Set<CustomElement> identical;
     /**
      * The resulting list of EditActions to transform left into right
      */
     private ArrayList<EditAction> result;
+    /**
+     * The EditActions of the last diff as an EditScript, which doesn't refer to the trees
+     */
+    private EditScript script;
     /**
      * Class that edits this.left after every creation of an EditAction
      */
     private TreeEditor editor;
+    /**
+     * Indicates whether the Matcher compares every left node with every right node, instead of using its
+     * CandidateIndex
+     */
+    private Boolean exhaustiveMatching;
+    /**
+     * The number of threads that the Matcher uses to calculate similarities
+     */
+    private Integer matchingThreads;
+    /**
+     * Diffs the texts and tails of matched nodes
+     */
+    private TextDiffer textDiffer;
+    /**
+     * The time spent in each phase during the last diff, in nanoseconds
+     */
+    private long[] phaseNanos = new long[Phase.values().length];
+
+    /**
+     * The phases of the diffing algorithm of which the time is recorded
+     */
+    enum Phase {Parse, Match, Insert, Update, Move, Align, Text, Delete, Output}
 
+    /**
+     * Create a Differ that matches exhaustively, which gives the best matching. See
+     * Differ(Double, Double, Boolean) for the faster matching with a CandidateIndex
+     *
+     * @param f Minimum similarity regarding the attributes
+     * @param t Minimum similarity regarding the children
+     */
     public Differ(Double f, Double t) {
+        this(f, t, true);
+    }
+
+    /**
+     * @param f                  Minimum similarity regarding the attributes
+     * @param t                  Minimum similarity regarding the children
+     * @param exhaustiveMatching Whether the Matcher compares every left node with every right node. If not, every left
+     *                           node is only compared with a shortlist of candidates from a CandidateIndex. That is
+     *                           much faster on large pages, but a left node may miss its best partner, so the edit
+     *                           script can be longer than with exhaustive matching
+     */
+
+    public Differ(Double f, Double t, Boolean exhaustiveMatching) {
+        this(f, t, exhaustiveMatching, 1);
+    }
+
+    public Differ(Double f, Double t, Boolean exhaustiveMatching, Integer matchingThreads) {
+        this(f, t, exhaustiveMatching, matchingThreads, TextDiffer.Granularity.Char);
+    }
+
+    /**
+     * @param f                  Minimum similarity regarding the attributes
+     * @param t                  Minimum similarity regarding the children
+     * @param exhaustiveMatching Whether the Matcher compares every left node with every right node
+     * @param matchingThreads    The number of threads that the Matcher uses to calculate similarities
+     * @param textGranularity    The size of the tokens in which the texts and tails are diffed. Words and sentences
+     *                           give fewer, larger <ins>'s and <del>'s, and are cheaper on long texts
+     */
+    public Differ(Double f, Double t, Boolean exhaustiveMatching, Integer matchingThreads,
+                  TextDiffer.Granularity textGranularity) {
+        this.exhaustiveMatching = exhaustiveMatching;
+        this.matchingThreads = matchingThreads;
+        this.textDiffer = new TextDiffer(textGranularity, TextDiffer.MAX_EDIT_COST);
         this.F = f;
         this.T = t;
         if (!(0 < f && f < 1))
@@ -58,46 +130,26 @@ public class Differ {
         //To prevent nullPointerExceptions
         if (parent == null)
             return 0;
-        //2. We skip this step. It takes too much time and the algorithm works without
-        //3. Find the rightmost sibling of 'node' that (1) is on the left of 'node', (2) is in order
-        List<CustomElement> children = parent.getCustomChildren(false);
-        int i = children.indexOf(node);
-        CustomElement foundSibling = null;
-        while (i >= 1) {
-            i -= 1;
-            CustomElement sibling = children.get(i);
-            if (this.inorder.contains(sibling)) {
-                foundSibling = sibling;
-                break;
-            }
-        }
-        //If we have found a sibling, go to step 4
-        if (foundSibling != null) {
-            //4. Find the partner of the found sibling
-            CustomElement siblingsPartner = this.r2l.get(foundSibling);
-            //5. Get the index i of siblingsPartner, and return i+1
-            // While calculating this index, we only count ordered children of the parent of foundSiblings partner,
-            // until we encounter foundSiblings partner
-            CustomElement nodesPartner = this.r2l.get(node);
-            i = 0;
-            //To prevent nullPointerExceptions
-            if (siblingsPartner.getCustomParentElement() == null)
-                return 0;
-            for (CustomElement child : siblingsPartner.getCustomParentElement().getCustomChildren(false)) {
-                if (child.equals(nodesPartner))//Don't count the node we're looking for, as it will be moved
-                    continue;
-                if (this.inorder.contains(child) || !this.l2r.containsKey(child))//These are left nodes that are
-                    // in order, or will be deleted. We also count these 'incorrectly placed nodes', as the position in
-                    // left should be increased by that number with regard to the position in right, as right doesn't
-                    // have these nodes
-                    i += 1;
-                if (child.equals(siblingsPartner))//We've found the partner of foundSibling, return its index in left
-                    break;
-            }
-            return i;
-        } else
+        //3. Find the rightmost sibling of 'node' that (1) is on the left of 'node', (2) is in order. The ChildIndex
+        // of the parent finds it in O(log n)
+        CustomElement foundSibling = node.getInOrderSiblingBefore();
+        //2. If there is no such sibling, 'node' is the leftmost child of its parent that is in order, so it becomes
+        // the first child. The paper checks this before step 3, but it needs the same query
+        if (foundSibling == null)
             return 0;
-
+        //4. Find the partner of the found sibling
+        CustomElement siblingsPartner = this.matching.getLeftPartner(foundSibling);
+        //5. Get the index i of siblingsPartner, and return i+1
+        // While calculating this index, we only count ordered children of the parent of foundSiblings partner,
+        // until we encounter foundSiblings partner
+        CustomElement nodesPartner = this.matching.getLeftPartner(node);
+        //To prevent nullPointerExceptions
+        if (siblingsPartner.getCustomParentElement() == null)
+            return 0;
+        //We count the left nodes that are in order, or will be deleted. We also count these 'incorrectly placed
+        // nodes', as the position in left should be increased by that number with regard to the position in
+        // right, as right doesn't have these nodes. Don't count the node we're looking for, as it will be moved
+        return siblingsPartner.getNrOfInOrderOrUnmatchedSiblings(nodesPartner);
     }
 
     /**
@@ -141,46 +193,62 @@ public class Differ {
         //2. Create list of nodes which parents are left / right, and their partners parents are right / left
         ArrayList<CustomElement> leftChildren = new ArrayList<>();
         ArrayList<CustomElement> rightChildren = new ArrayList<>();
-        for (CustomElement child : left.getCustomChildren(false))
-            if (l2r.containsKey(child))
-                if (l2r.get(child).getCustomParentElement() != null && l2r.get(child).getCustomParentElement().equals(right))
-                    leftChildren.add(child);
-        for (CustomElement child : right.getCustomChildren(false))
-            if (r2l.containsKey(child))
-                if (r2l.get(child).getCustomParentElement() != null && r2l.get(child).getCustomParentElement().equals(left))
-                    rightChildren.add(child);
+        for (CustomElement child : left.getCustomChildren(false)) {
+            CustomElement partner = this.matching.getRightPartner(child);
+            if (partner != null && right.equals(partner.getCustomParentElement()))
+                leftChildren.add(child);
+        }
+        for (CustomElement child : right.getCustomChildren(false)) {
+            CustomElement partner = this.matching.getLeftPartner(child);
+            if (partner != null && left.equals(partner.getCustomParentElement()))
+                rightChildren.add(child);
+        }
 
         //No children to align
         if (leftChildren.size() <= 0 && rightChildren.size() <= 0)
             return;
-        //3. Create and equal function, which defines whether two nodes are partners
-        BiFunction<CustomElement, CustomElement, Boolean> equal = (element, element2) -> this.l2r.get(element).equals(element2);
+        //3. Number the right children, and replace each left child by the number of its partner, such that two
+        // children are equal when they are partners
+        int[] rightSequence = new int[rightChildren.size()];
+        for (int j = 0; j < rightChildren.size(); j++) {
+            this.rightPositions[rightChildren.get(j).getId()] = j;
+            rightSequence[j] = j;
+        }
+        int[] leftSequence = new int[leftChildren.size()];
+        for (int i = 0; i < leftChildren.size(); i++)
+            leftSequence[i] = this.rightPositions[this.matching.getRightPartner(leftChildren.get(i)).getId()];
+        for (CustomElement child : rightChildren)
+            this.rightPositions[child.getId()] = -1;
         //4. Create the LCS of leftChildren and rightChildren
-        HashMap<CustomElement, CustomElement> matches = Utils.lcs(leftChildren, rightChildren, equal);
+        int[] matches = Utils.lcs(leftSequence, rightSequence);
         //5. Mark all nodes in LCS as in_order
-        for (Map.Entry<CustomElement, CustomElement> entry : matches.entrySet()) {
-            this.inorder.add(entry.getKey());
-            this.inorder.add(entry.getValue());
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] >= 0) {
+                leftChildren.get(i).setInOrder(true);
+                rightChildren.get(matches[i]).setInOrder(true);
+            }
         }
 
         //6. Loop over all left children that are not in order, find their partner and its position, and create
         // an EditAction
-        ArrayList<CustomElement> unalignedLeft = new ArrayList<>(leftChildren);
-        unalignedLeft.removeAll(this.inorder);
+        ArrayList<CustomElement> unalignedLeft = new ArrayList<>();
+        for (CustomElement child : leftChildren)
+            if (!child.isInOrder())
+                unalignedLeft.add(child);
         for (CustomElement leftElem : unalignedLeft) {
-            CustomElement rightElem = this.l2r.get(leftElem);
+            CustomElement rightElem = this.matching.getRightPartner(leftElem);
             //(a) Find the position of rightElem
             Integer rightPosition = this.findPosition(rightElem);
             CustomElement rightTarget = rightElem.getCustomParentElement();
-            CustomElement leftTarget = this.r2l.get(rightTarget);
+            CustomElement leftTarget = this.matching.getLeftPartner(rightTarget);
             //(b). Create the EditAction to move leftElem to the position of rightElem in parent rightTarget
             EditAction action = new EditAction(EditAction.ActionType.MoveNode, leftElem, leftTarget, rightPosition);
             result.add(action);
             //Do the move
             editor.moveNode(action);
             //(c) Mark leftElem and rightElem as in order
-            this.inorder.add(leftElem);
-            this.inorder.add(rightElem);
+            leftElem.setInOrder(true);
+            rightElem.setInOrder(true);
         }
     }
 
@@ -193,14 +261,14 @@ public class Differ {
      */
     private void updateNodeText(CustomElement left, CustomElement right) throws Exception {
         if (!left.getCustomText().equals(right.getCustomText())) {
-            String updatedText = new TextDiffer().diff(left.getCustomText(), right.getCustomText());
+            String updatedText = this.textDiffer.diff(left.getCustomText(), right.getCustomText());
             EditAction action = new EditAction(EditAction.ActionType.UpdateTextIn, left, updatedText);
             result.add(action);
             //Update the left node
             editor.updateText(action);
         }
         if (!left.getTail().equals(right.getTail())) {
-            String updatedTail = new TextDiffer().diff(left.getTail(), right.getTail());
+            String updatedTail = this.textDiffer.diff(left.getTail(), right.getTail());
             EditAction action = new EditAction(EditAction.ActionType.UpdateTail, left, updatedTail);
             result.add(action);
             //Update the left node
@@ -218,27 +286,204 @@ public class Differ {
      * @throws Exception This exception is thrown if an incorrect EditAction if created
      */
     ArrayList<EditAction> diff(String f1, String f2, String o) throws Exception {
+        Arrays.fill(this.phaseNanos, 0);
+        long time = System.nanoTime();
+        CustomElement left = Utils.filenameToTree(f1);
+        CustomElement right = Utils.filenameToTree(f2);
+        this.endPhase(Phase.Parse, time);
+        return this.diff(left, right, o);
+    }
+
+    /**
+     * Diff a file against the baseline of its previous version, and make the file the new baseline. The previous
+     * version is read from the baseline, so only the file is parsed. When the file didn't change, nothing is matched
+     * and no output is created. When there is no baseline yet, the file is only saved as the baseline
+     *
+     * @param baseline The file holding the baseline
+     * @param f        Filename of the new version
+     * @param o        Output filename
+     * @return The EditActions to transform the previous version into the new version
+     * @throws Exception This exception is thrown if an incorrect EditAction if created, or the baseline cannot be
+     *                   read or written
+     */
+    ArrayList<EditAction> diffWithBaseline(String baseline, String f, String o) throws Exception {
+        Arrays.fill(this.phaseNanos, 0);
+        long time = System.nanoTime();
+        Baseline stored = new Baseline(baseline);
+        CustomElement left = stored.exists() ? stored.load() : null;
+        CustomElement right = Utils.filenameToTree(f);
+        this.endPhase(Phase.Parse, time);
+        if (left != null && left.getSubtreeHash() == right.getSubtreeHash() && left.isEqualTo(right, false))
+            return new ArrayList<>();
+        ArrayList<EditAction> actions = left == null ? new ArrayList<>() : this.diff(left, right, o);
+        //The Differ only edits the left tree, so the right tree is still the new version
+        stored.save(right);
+        return actions;
+    }
+
+    /**
+     * Diff two html documents that are held in memory, see diff(String, String, String)
+     *
+     * @param html1 The old html
+     * @param html2 The new html
+     * @param out   The stream to which the result is written as an html document, or null. Nothing is written when
+     *              the documents are equal. The stream is not closed
+     * @return The EditActions
+     * @throws Exception This exception is thrown if an incorrect EditAction if created, or the result cannot be written
+     */
+    public ArrayList<EditAction> diffHtml(String html1, String html2, OutputStream out) throws Exception {
+        Arrays.fill(this.phaseNanos, 0);
+        long time = System.nanoTime();
+        CustomElement left = Utils.htmlToTree(html1);
+        CustomElement right = Utils.htmlToTree(html2);
+        this.endPhase(Phase.Parse, time);
+        return this.diffTrees(left, right, out);
+    }
+
+    /**
+     * Diff two streams of html in UTF-8, see diffHtml
+     *
+     * @param in1 The old html. It is read until its end
+     * @param in2 The new html. It is read until its end
+     * @param out The stream to which the result is written, or null, see diffHtml
+     * @return The EditActions
+     * @throws Exception This exception is thrown if an incorrect EditAction if created, or a stream cannot be read or
+     *                   written
+     */
+    public ArrayList<EditAction> diff(InputStream in1, InputStream in2, OutputStream out) throws Exception {
+        Arrays.fill(this.phaseNanos, 0);
+        long time = System.nanoTime();
+        CustomElement left = Utils.streamToTree(in1);
+        CustomElement right = Utils.streamToTree(in2);
+        this.endPhase(Phase.Parse, time);
+        return this.diffTrees(left, right, out);
+    }
+
+    /**
+     * Diff two trees that are parsed already, like by the TreeBuilder or read by the TreeSerializer, see diffHtml
+     *
+     * @param left  The root of the old tree. It is edited into the new tree, so it cannot be diffed again
+     * @param right The root of the new tree. It is not edited, so it can be diffed again
+     * @param out   The stream to which the result is written, or null, see diffHtml
+     * @return The EditActions
+     * @throws Exception This exception is thrown if an incorrect EditAction if created, or the result cannot be written
+     */
+    public ArrayList<EditAction> diff(CustomElement left, CustomElement right, OutputStream out) throws Exception {
+        Arrays.fill(this.phaseNanos, 0);
+        return this.diffTrees(left, right, out);
+    }
+
+    /**
+     * Diff two html documents like diffHtml, but return the EditActions as an EditScript. The Differ doesn't keep the
+     * trees afterwards, so they can be collected
+     *
+     * @return The EditScript
+     * @throws Exception See diffHtml
+     */
+    EditScript diffHtmlToScript(String html1, String html2, OutputStream out) throws Exception {
+        this.diffHtml(html1, html2, out);
+        return this.releaseTrees();
+    }
+
+    /**
+     * Diff two streams of html like diff(InputStream, InputStream, OutputStream), but return the EditActions as an
+     * EditScript, see diffHtmlToScript
+     *
+     * @return The EditScript
+     * @throws Exception See diff(InputStream, InputStream, OutputStream)
+     */
+    EditScript diffStreamsToScript(InputStream in1, InputStream in2, OutputStream out) throws Exception {
+        this.diff(in1, in2, out);
+        return this.releaseTrees();
+    }
+
+    /**
+     * Release the trees of the last diff, and everything that refers to them
+     *
+     * @return The EditScript of the last diff
+     */
+    private EditScript releaseTrees() {
+        this.left = this.right = null;
+        this.matching = null;
+        this.identical = null;
+        this.result = null;
+        this.editor = null;
+        return this.script;
+    }
+
+    /**
+     * Perform the diffing algorithm on two trees, and write the result to a stream
+     */
+    private ArrayList<EditAction> diffTrees(CustomElement left, CustomElement right, OutputStream out)
+            throws Exception {
+        this.edit(left, right);
+        long time = System.nanoTime();
+        if (out != null && this.result.size() > 0)
+            new Outputter().output(this.left, out);
+        this.endPhase(Phase.Output, time);
+        return this.result;
+    }
+
+    /**
+     * Perform the diffing algorithm on two trees, and write the result to a file
+     *
+     * @param left  The root of the old tree, which is edited into the new tree
+     * @param right The root of the new tree
+     * @param o     Output filename
+     * @return The EditActions
+     * @throws Exception This exception is thrown if an incorrect EditAction if created
+     */
+    private ArrayList<EditAction> diff(CustomElement left, CustomElement right, String o) throws Exception {
+        this.edit(left, right);
+        long time = System.nanoTime();
+        createOutputFile(o);
+        this.endPhase(Phase.Output, time);
+        return this.result;
+    }
+
+    /**
+     * Perform the 5 phases of the diffing algorithm on two trees, which edits the left tree into the right tree and
+     * creates the EditActions. The numbers and letters refer to figure 8 of the paper
+     *
+     * @param left  The root of the old tree
+     * @param right The root of the new tree
+     * @throws Exception This exception is thrown if an incorrect EditAction if created
+     */
+    private void edit(CustomElement left, CustomElement right) throws Exception {
         //1.
+        long time = System.nanoTime();
         result = new ArrayList<>();
-        this.left = Utils.filenameToTree(f1);
-        this.right = Utils.filenameToTree(f2);
+        this.left = left;
+        this.right = right;
         this.editor = new TreeEditor(this.left);
-        this.inorder = new HashSet<>();
-        ArrayList<HashMap<CustomElement, CustomElement>> matchResult = new Matcher(this.F, this.T).bestMatch(this.left, this.right);
-        if (matchResult.size() != 2)
-            throw new Exception("Cannot bestMatch trees!");
-        this.l2r = matchResult.get(0);
-        this.r2l = matchResult.get(1);
+        Matcher matcher = new Matcher(this.F, this.T, this.exhaustiveMatching, this.matchingThreads);
+        this.matching = matcher.match(this.left, this.right);
+        this.identical = matcher.getIdenticalNodes();
+        this.rightPositions = new int[this.matching.rightSize()];
+        Arrays.fill(this.rightPositions, -1);
+        //Mark the nodes that have a partner, and reset the nodes in order, as the right tree might be diffed before
+        for (CustomElement node : Utils.breadthFirstSearch(this.left)) {
+            node.setInOrder(false);
+            node.setMatched(this.matching.getRightPartner(node) != null);
+        }
+        for (CustomElement node : Utils.breadthFirstSearch(this.right)) {
+            node.setInOrder(false);
+            node.setMatched(this.matching.getLeftPartner(node) != null);
+        }
+        time = this.endPhase(Phase.Match, time);
         //2.
-        for (CustomElement rightNode : Utils.breadthFirstSearch(this.right)) {
+        //Identical subtrees don't need any EditActions, so we only visit their roots, which might need to be moved
+        for (CustomElement rightNode : Utils.breadthFirstSearch(this.right, this.identical)) {
+            if (Thread.interrupted())
+                throw new InterruptedException("The diff was interrupted");
             if (rightNode.isUnidentifiableLeaf())//Don't diff these kind of nodes
                 continue;
             //(a)
             CustomElement rightParent = rightNode.getCustomParentElement();
-            CustomElement leftTarget = this.r2l.get(rightParent);
+            CustomElement leftTarget = rightParent == null ? null : this.matching.getLeftPartner(rightParent);
             CustomElement leftNode;//Will be created below
             //(b): If rightNode has no partner -> Insert phase
-            if (!r2l.containsKey(rightNode)) {
+            if (this.matching.getLeftPartner(rightNode) == null) {
                 //i. Find the position at which the new node has to be inserted
                 Integer position = this.findPosition(rightNode);
                 //ii. Create a new EditAction
@@ -254,16 +499,18 @@ public class Differ {
                 //As an addition to the paper, we also update attributes. The paper assumes only labels and values,
                 // we also assume styles and other attributes. Nodes also have texts, but we add these later
                 this.updateNodeAttributes(leftNode, rightNode);
+                time = this.endPhase(Phase.Insert, time);
             }
             //(c) If rightNode does have a partner -> Update, Move, and Align phase
             else {
                 //i. Get the partner, and its parent of rightNode,
-                leftNode = this.r2l.get(rightNode);
+                leftNode = this.matching.getLeftPartner(rightNode);
                 CustomElement leftParent = leftNode.getCustomParentElement();
                 //ii. Update phase: update the tags and attributes of the leftNode, if needed
                 // A. & B. We create the EditAction, and update leftNode
                 this.updateNodeTag(leftNode, rightNode);
                 this.updateNodeAttributes(leftNode, rightNode);
+                time = this.endPhase(Phase.Update, time);
                 //iii. Move phase
                 // If the parent of leftNode is not equal to leftTarget, leftNode needs to be moved to leftTarget
                 if (leftParent != null && !leftParent.equals(leftTarget)) {
@@ -275,33 +522,81 @@ public class Differ {
                     result.add(action);
                     //D. Update leftNode
                     editor.moveNode(action);
-                    this.inorder.add(leftNode);
-                    this.inorder.add(rightNode);
+                    leftNode.setInOrder(true);
+                    rightNode.setInOrder(true);
+                    time = this.endPhase(Phase.Move, time);
                 }
             }
             //(d) Align phase
             alignChildren(leftNode, rightNode);
-            leftNode = this.r2l.get(rightNode);
+            leftNode = this.matching.getLeftPartner(rightNode);
+            time = this.endPhase(Phase.Align, time);
             //Update text and tail
             this.updateNodeText(leftNode, rightNode);
+            time = this.endPhase(Phase.Text, time);
         }
         //3. Delete phase
-        for (CustomElement leftNode : Utils.reversePostOrderTraverse(this.left)) {
+        //The EditActions of the descendants of deleted nodes are collected, and removed from the result at once
+        Set<EditAction> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (CustomElement leftNode : Utils.reversePostOrderTraverse(this.left, this.identical)) {
             if (leftNode.isUnidentifiableLeaf())//Don't diff these kind of nodes
                 continue;
             //(a)
-            if (!this.l2r.containsKey(leftNode)) {
+            if (this.matching.getRightPartner(leftNode) == null) {
                 //(b) If this item has no match, create a DeleteNode EditAction, and apply it
                 EditAction action = new EditAction(EditAction.ActionType.DeleteNode, leftNode);
                 result.add(action);
                 //Update left, the result of deleteNode is a list of all Edit Actions of the children of the node.
                 // These actions are removed, as we don't want edit actions on children of a deleted node.
-                this.result.removeAll(editor.deleteNode(action));
+                removed.addAll(editor.deleteNode(action));
             }
         }
+        if (!removed.isEmpty())
+            this.result.removeIf(removed::contains);
+        this.script = new EditScript(this.result, this.matching);
+        this.endPhase(Phase.Delete, time);
         //4. Done!
-        createOutputFile(o);
-        return this.result;
+    }
+
+    /**
+     * @return The EditActions of the last diff as an EditScript, which can be kept without keeping the trees
+     */
+    EditScript getEditScript() {
+        return this.script;
+    }
+
+    /**
+     * Add the time since the start of a phase to the total of that phase
+     *
+     * @param phase The phase that ended
+     * @param start The start of the phase, from System.nanoTime()
+     * @return The end of the phase, which is the start of the next phase
+     */
+    private long endPhase(Phase phase, long start) {
+        long end = System.nanoTime();
+        this.phaseNanos[phase.ordinal()] += end - start;
+        return end;
+    }
+
+    /**
+     * @param phase A phase of the algorithm
+     * @return The time spent in that phase during the last diff, in nanoseconds
+     */
+    long getPhaseNanos(Phase phase) {
+        return this.phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Match two files both with the candidate index of the Matcher and exhaustively, and return how many of the
+     * exhaustive matches are also found using the candidate index
+     *
+     * @param f1 Filename 1
+     * @param f2 Filename 2
+     * @return The fraction of equal matches
+     * @throws Exception Thrown when the files cannot be read, or the matching fails
+     */
+    double compareMatchQuality(String f1, String f2) throws Exception {
+        return Matcher.compareToExhaustive(Utils.filenameToTree(f1), Utils.filenameToTree(f2), this.F, this.T);
     }
 
     /**
@@ -316,10 +611,11 @@ public class Differ {
         if (!l.isEqualTo(r, false))
             throw new Exception("Cant match unequal elements!");
         else {
-            this.inorder.add(l);
-            this.inorder.add(r);
-            this.l2r.put(l, r);
-            this.r2l.put(r, l);
+            l.setInOrder(true);
+            r.setInOrder(true);
+            l.setMatched(true);
+            r.setMatched(true);
+            this.matching.match(l, r);
             List<CustomElement> lc = l.getCustomChildren(false);
             List<CustomElement> rc = r.getCustomChildren(false);
             if (lc.size() != rc.size())
@@ -0,0 +1,128 @@
+import java.util.List;
+
+/**
+ * A compact and immutable edit script: the EditActions of a diff, without any references to the trees. Unlike a list
+ * of EditActions, it doesn't keep the trees in memory, so it can be kept, cached or shipped after the diff.
+ * The nodes are addressed by their id. The nodes of the left tree have their number in the post order of the left
+ * tree as it was matched, see FlatTree. Inserted nodes get the next ids, in the order in which they are inserted, and
+ * refer to the node of the right tree they are a copy of by its number in the post order of the right tree.
+ * The actions are kept in parallel arrays, with one entry per action
+ */
+class EditScript {
+    private static final EditAction.ActionType[] TYPES = EditAction.ActionType.values();
+    private static final EditStyleAction.StyleActionType[] STYLE_TYPES = EditStyleAction.StyleActionType.values();
+    /**
+     * The value of a node or position that an action doesn't have
+     */
+    static final int NONE = -1;
+
+    /**
+     * The type of every action, and the style type of every EditStyleAction or NONE
+     */
+    private byte[] types, styleTypes;
+    /**
+     * The node of every action, the right node that an inserted node is a copy of, and the new parent and the
+     * position of an inserted or moved node
+     */
+    private int[] targets, sources, newParents, positions;
+    private String[] keys, values;
+
+    /**
+     * Create the edit script of a diff
+     *
+     * @param actions  The EditActions of the diff, in order
+     * @param matching The matching of the diff, which holds the right nodes of the inserted nodes
+     */
+    EditScript(List<EditAction> actions, Matching matching) {
+        int size = actions.size();
+        this.types = new byte[size];
+        this.styleTypes = new byte[size];
+        this.targets = new int[size];
+        this.sources = new int[size];
+        this.newParents = new int[size];
+        this.positions = new int[size];
+        this.keys = new String[size];
+        this.values = new String[size];
+        for (int i = 0; i < size; i++) {
+            EditAction action = actions.get(i);
+            this.types[i] = (byte) action.getType().ordinal();
+            this.styleTypes[i] = (byte) (action instanceof EditStyleAction ?
+                    ((EditStyleAction) action).getStyleType().ordinal() : NONE);
+            this.targets[i] = action.getTarget().getId();
+            CustomElement source = action.getType() == EditAction.ActionType.InsertNode ?
+                    matching.getRightPartner(action.getTarget()) : null;
+            this.sources[i] = source == null ? NONE : source.getId();
+            this.newParents[i] = action.getNewParent() == null ? NONE : action.getNewParent().getId();
+            this.positions[i] = action.getPosition() == null ? NONE : action.getPosition();
+            this.keys[i] = action.getKey();
+            this.values[i] = action.getValue();
+        }
+    }
+
+    /**
+     * @return The number of actions
+     */
+    int size() {
+        return this.types.length;
+    }
+
+    EditAction.ActionType getType(int action) {
+        return TYPES[this.types[action]];
+    }
+
+    /**
+     * @param action The number of an action
+     * @return The style type of the action, or null if it isn't an EditStyleAction
+     */
+    EditStyleAction.StyleActionType getStyleType(int action) {
+        return this.styleTypes[action] == NONE ? null : STYLE_TYPES[this.styleTypes[action]];
+    }
+
+    /**
+     * @param action The number of an action
+     * @return The id of the node of the action
+     */
+    int getTarget(int action) {
+        return this.targets[action];
+    }
+
+    /**
+     * @param action The number of an action
+     * @return The number of the right node of which an inserted node is a copy, or NONE
+     */
+    int getSource(int action) {
+        return this.sources[action];
+    }
+
+    /**
+     * @param action The number of an action
+     * @return The id of the new parent of an inserted or moved node, or NONE
+     */
+    int getNewParent(int action) {
+        return this.newParents[action];
+    }
+
+    /**
+     * @param action The number of an action
+     * @return The position of an inserted or moved node among the non-deleted children of its new parent, or NONE
+     */
+    int getPosition(int action) {
+        return this.positions[action];
+    }
+
+    /**
+     * @param action The number of an action
+     * @return The (style) attribute key, or null
+     */
+    String getKey(int action) {
+        return this.keys[action];
+    }
+
+    /**
+     * @param action The number of an action
+     * @return The value, the new attribute key, the new tag or the new text, or null
+     */
+    String getValue(int action) {
+        return this.values[action];
+    }
+}
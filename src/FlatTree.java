@@ -0,0 +1,284 @@
+import org.jdom2.Attribute;
+
+import java.util.*;
+
+/**
+ * A compact, read-only copy of a tree of CustomElements, used by the Matcher and the SimilarityCalculator.
+ * The nodes are numbered in post order, and every node characteristic is stored in an int array indexed by that
+ * number. Tags, attribute names and values, style names and values, texts and tails are interned in a StringPool that
+ * is shared with the other tree, so they are compared by their ids. The (style) attributes of a node are sorted by
+ * the id of their name, such that two nodes can be compared attribute by attribute without creating maps.
+ * The CustomElements themselves are only needed again when the matching is done. They are not replaced though, as
+ * the Differ edits the left tree and the Outputter writes it, so a FlatTree adds to the memory used by a diff.
+ */
+class FlatTree {
+    private static final int NONE = -1;
+
+    private StringPool pool;
+    /**
+     * The original elements, indexed by their number
+     */
+    private CustomElement[] elements;
+    /**
+     * The structure of the tree. Numbers of nodes, or NONE
+     */
+    private int[] parent, firstChild, nextSibling;
+    private int[] childCount;
+    /**
+     * String ids of the tag, text and tail of each node
+     */
+    private int[] tag, text, tail;
+    /**
+     * The attributes of node i are attributeName[attributeStart[i]] until attributeName[attributeStart[i + 1]], sorted
+     * by name. The same holds for the style attributes
+     */
+    private int[] attributeStart, attributeName, attributeValue;
+    private int[] styleStart, styleName, styleValue;
+    private int[] nrOfLeafs;
+    private long[] subtreeHash;
+
+    /**
+     * Create the flat copy of a tree, and number its elements. Deleted elements are skipped
+     *
+     * @param root The root of the tree
+     * @param pool The pool in which the strings are interned
+     */
+    FlatTree(CustomElement root, StringPool pool) {
+        this.pool = pool;
+        ArrayList<CustomElement> nodes = Utils.postOrderTraverse(root);
+        int size = nodes.size();
+        this.elements = nodes.toArray(new CustomElement[size]);
+        this.parent = new int[size];
+        this.firstChild = new int[size];
+        this.nextSibling = new int[size];
+        this.childCount = new int[size];
+        this.tag = new int[size];
+        this.text = new int[size];
+        this.tail = new int[size];
+        this.attributeStart = new int[size + 1];
+        this.styleStart = new int[size + 1];
+        this.nrOfLeafs = new int[size];
+        this.subtreeHash = new long[size];
+        Arrays.fill(this.parent, NONE);
+        Arrays.fill(this.firstChild, NONE);
+        Arrays.fill(this.nextSibling, NONE);
+        int nrOfAttributes = 0, nrOfStyles = 0;
+        for (int i = 0; i < size; i++) {
+            this.elements[i].setId(i);
+            nrOfAttributes += this.elements[i].getAttributes().size();
+            nrOfStyles += this.elements[i].getStyleAttributes().size();
+        }
+        this.attributeName = new int[nrOfAttributes];
+        this.attributeValue = new int[nrOfAttributes];
+        this.styleName = new int[nrOfStyles];
+        this.styleValue = new int[nrOfStyles];
+        for (int i = 0; i < size; i++) {
+            CustomElement e = this.elements[i];
+            this.tag[i] = pool.id(e.getName());
+            this.text[i] = pool.id(e.getCustomText());
+            this.tail[i] = pool.id(e.getTail());
+            this.nrOfLeafs[i] = e.getNrOfLeafsInSubtree();
+            this.subtreeHash[i] = e.getSubtreeHash();
+            //Link the children. Children have lower numbers than their parent in post order
+            int previous = NONE;
+            for (CustomElement child : e.getCustomChildren(false)) {
+                int c = child.getId();
+                this.parent[c] = i;
+                if (previous == NONE)
+                    this.firstChild[i] = c;
+                else
+                    this.nextSibling[previous] = c;
+                previous = c;
+                this.childCount[i]++;
+            }
+            //Copy the attributes and styles
+            this.attributeStart[i + 1] = this.attributeStart[i];
+            for (Attribute a : e.getAttributes()) {
+                this.attributeName[this.attributeStart[i + 1]] = pool.id(a.getName());
+                this.attributeValue[this.attributeStart[i + 1]++] = pool.id(a.getValue());
+            }
+            sortByName(this.attributeName, this.attributeValue, this.attributeStart[i], this.attributeStart[i + 1]);
+            this.styleStart[i + 1] = this.styleStart[i];
+            for (Map.Entry<String, String> style : e.getStyleAttributes().entrySet()) {
+                this.styleName[this.styleStart[i + 1]] = pool.id(style.getKey());
+                this.styleValue[this.styleStart[i + 1]++] = pool.id(style.getValue());
+            }
+            sortByName(this.styleName, this.styleValue, this.styleStart[i], this.styleStart[i + 1]);
+        }
+    }
+
+    /**
+     * Sort a small range of name-value pairs by name, using insertion sort
+     */
+    private static void sortByName(int[] names, int[] values, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int name = names[i], value = values[i];
+            int j = i - 1;
+            while (j >= from && names[j] > name) {
+                names[j + 1] = names[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            names[j + 1] = name;
+            values[j + 1] = value;
+        }
+    }
+
+    int size() {
+        return this.elements.length;
+    }
+
+    /**
+     * @return The number of the root, which is the last node in post order
+     */
+    int root() {
+        return this.elements.length - 1;
+    }
+
+    StringPool getPool() {
+        return this.pool;
+    }
+
+    CustomElement getElement(int node) {
+        return this.elements[node];
+    }
+
+    int getParent(int node) {
+        return this.parent[node];
+    }
+
+    int getFirstChild(int node) {
+        return this.firstChild[node];
+    }
+
+    int getNextSibling(int node) {
+        return this.nextSibling[node];
+    }
+
+    int getChildCount(int node) {
+        return this.childCount[node];
+    }
+
+    int getTag(int node) {
+        return this.tag[node];
+    }
+
+    int getText(int node) {
+        return this.text[node];
+    }
+
+    int getTail(int node) {
+        return this.tail[node];
+    }
+
+    int getNrOfLeafsInSubtree(int node) {
+        return this.nrOfLeafs[node];
+    }
+
+    long getSubtreeHash(int node) {
+        return this.subtreeHash[node];
+    }
+
+    int getAttributeCount(int node) {
+        return this.attributeStart[node + 1] - this.attributeStart[node];
+    }
+
+    /**
+     * @return The name id of the k-th attribute of a node
+     */
+    int getAttributeName(int node, int k) {
+        return this.attributeName[this.attributeStart[node] + k];
+    }
+
+    /**
+     * @return The value id of the k-th attribute of a node
+     */
+    int getAttributeValue(int node, int k) {
+        return this.attributeValue[this.attributeStart[node] + k];
+    }
+
+    /**
+     * Find the value of an attribute
+     *
+     * @param node The node
+     * @param name The id of the attribute name
+     * @return The id of the value, or -1 if the node doesn't have the attribute
+     */
+    int getAttribute(int node, int name) {
+        for (int k = this.attributeStart[node]; k < this.attributeStart[node + 1]; k++)
+            if (this.attributeName[k] == name)
+                return this.attributeValue[k];
+        return NONE;
+    }
+
+    int getStyleCount(int node) {
+        return this.styleStart[node + 1] - this.styleStart[node];
+    }
+
+    /**
+     * @return The name id of the k-th style attribute of a node
+     */
+    int getStyleName(int node, int k) {
+        return this.styleName[this.styleStart[node] + k];
+    }
+
+    /**
+     * @return The value id of the k-th style attribute of a node
+     */
+    int getStyleValue(int node, int k) {
+        return this.styleValue[this.styleStart[node] + k];
+    }
+
+    /**
+     * Indicates whether a node is an unidentifiable leaf, see CustomElement.isUnidentifiableLeaf
+     *
+     * @param node The node
+     * @return The result
+     */
+    boolean isUnidentifiableLeaf(int node) {
+        return this.text[node] == StringPool.EMPTY && this.tail[node] == StringPool.EMPTY &&
+                this.getStyleCount(node) <= 0 && this.getAttributeCount(node) <= 0 && this.childCount[node] <= 0;
+    }
+
+    /**
+     * Check whether a node of this tree has all characteristics, except for the parent, equal to a node of another
+     * tree. Like CustomElement.isEqualTo, the tag is not compared, and only the (style) attributes of this node need
+     * to occur in the other node
+     *
+     * @param node       The node in this tree
+     * @param other      The other tree
+     * @param otherNode  The node in the other tree
+     * @return The result
+     */
+    boolean isEqualTo(int node, FlatTree other, int otherNode) {
+        if (this.text[node] != other.text[otherNode] || this.tail[node] != other.tail[otherNode])
+            return false;
+        if (this.childCount[node] != other.childCount[otherNode])
+            return false;
+        if (!containedIn(this.attributeName, this.attributeValue, this.attributeStart[node], this.attributeStart[node + 1],
+                other.attributeName, other.attributeValue, other.attributeStart[otherNode], other.attributeStart[otherNode + 1]))
+            return false;
+        if (!containedIn(this.styleName, this.styleValue, this.styleStart[node], this.styleStart[node + 1],
+                other.styleName, other.styleValue, other.styleStart[otherNode], other.styleStart[otherNode + 1]))
+            return false;
+        for (int c = this.firstChild[node], o = other.firstChild[otherNode]; c != NONE; c = this.nextSibling[c], o = other.nextSibling[o])
+            if (!this.isEqualTo(c, other, o))
+                return false;
+        return true;
+    }
+
+    /**
+     * Check whether all name-value pairs of one sorted range occur in another sorted range
+     */
+    private static boolean containedIn(int[] names, int[] values, int from, int to,
+                                       int[] otherNames, int[] otherValues, int otherFrom, int otherTo) {
+        int j = otherFrom;
+        for (int i = from; i < to; i++) {
+            while (j < otherTo && otherNames[j] < names[i])
+                j++;
+            if (j >= otherTo || otherNames[j] != names[i] || otherValues[j] != values[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.HashMap;
+
+/**
+ * Calculates the Levenshtein distance between two strings (https://en.wikipedia.org/wiki/Levenshtein_distance),
+ * but only up to a limit. The SimilarityCalculator only needs to know whether two strings are similar enough, so
+ * the calculation stops as soon as the distance is known to exceed that limit.
+ * Common prefixes and suffixes are skipped first. Short strings are compared with the bit-parallel algorithm of
+ * Myers (http://www.gersteinlab.org/courses/452/09-spring/pdf/Myers.pdf), longer strings with a dynamic
+ * programming table that only holds a band of width 2 * limit + 1 around the diagonal.
+ */
+final class Levenshtein {
+    /**
+     * The maximum length of the shortest string for which the bit-parallel algorithm is used
+     */
+    private static final int WORD_SIZE = 64;
+    /**
+     * The characters for which the bit-parallel algorithm uses an array lookup instead of a map
+     */
+    private static final int ASCII_SIZE = 128;
+
+    private Levenshtein() {
+    }
+
+    /**
+     * Calculate the distance between two strings, if it is at most limit
+     *
+     * @param a     The first string
+     * @param b     The second string
+     * @param limit The maximum distance that is of interest
+     * @return The distance, or -1 if the distance is larger than limit
+     */
+    static int distance(String a, String b, int limit) {
+        if (limit < 0)
+            return -1;
+        //Make sure a is the shorter string
+        if (a.length() > b.length()) {
+            String tmp = a;
+            a = b;
+            b = tmp;
+        }
+        if (b.length() - a.length() > limit)//Every extra character costs an insertion
+            return -1;
+        //Skip the common prefix and suffix, these don't change the distance
+        int start = 0;
+        while (start < a.length() && a.charAt(start) == b.charAt(start))
+            start++;
+        int aEnd = a.length(), bEnd = b.length();
+        while (aEnd > start && a.charAt(aEnd - 1) == b.charAt(bEnd - 1)) {
+            aEnd--;
+            bEnd--;
+        }
+        int m = aEnd - start, n = bEnd - start;
+        if (m == 0)
+            return n;
+        if (m <= WORD_SIZE)
+            return bitParallel(a, b, start, m, n, limit);
+        return banded(a, b, start, m, n, limit);
+    }
+
+    /**
+     * The bit-parallel algorithm of Myers, as formulated by Hyyro for the edit distance. Each column of the dynamic
+     * programming table is encoded as bit vectors of vertical deltas, so a column is computed in a few operations
+     *
+     * @param a      The shortest string, at most 64 characters long from start
+     * @param b      The longest string
+     * @param start  The index of the first character to compare
+     * @param m      The number of characters to compare in a
+     * @param n      The number of characters to compare in b
+     * @param limit  The maximum distance that is of interest
+     * @return The distance, or -1 if the distance is larger than limit
+     */
+    private static int bitParallel(String a, String b, int start, int m, int n, int limit) {
+        long[] ascii = new long[ASCII_SIZE];
+        HashMap<Character, Long> others = null;
+        for (int i = 0; i < m; i++) {
+            char c = a.charAt(start + i);
+            if (c < ASCII_SIZE)
+                ascii[c] |= 1L << i;
+            else {
+                if (others == null)
+                    others = new HashMap<>();
+                others.merge(c, 1L << i, (x, y) -> x | y);
+            }
+        }
+        long last = 1L << (m - 1);
+        long pv = -1L, mv = 0L;
+        int score = m;
+        for (int j = 0; j < n; j++) {
+            char c = b.charAt(start + j);
+            long eq;
+            if (c < ASCII_SIZE)
+                eq = ascii[c];
+            else
+                eq = others == null ? 0L : others.getOrDefault(c, 0L);
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & last) != 0)
+                score++;
+            else if ((mh & last) != 0)
+                score--;
+            //Every remaining character of b can lower the distance by at most one
+            if (score - (n - j - 1) > limit)
+                return -1;
+            ph = (ph << 1) | 1L;
+            mh = mh << 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+        }
+        return score <= limit ? score : -1;
+    }
+
+    /**
+     * Compute the distance using only the cells of the dynamic programming table that are at most limit away from
+     * the diagonal. The computation stops when all cells of a row exceed the limit
+     *
+     * @param a      The shortest string
+     * @param b      The longest string
+     * @param start  The index of the first character to compare
+     * @param m      The number of characters to compare in a
+     * @param n      The number of characters to compare in b
+     * @param limit  The maximum distance that is of interest
+     * @return The distance, or -1 if the distance is larger than limit
+     */
+    private static int banded(String a, String b, int start, int m, int n, int limit) {
+        int over = limit + 1;//Used for all cells outside the band
+        int[] previous = new int[n + 1];
+        int[] current = new int[n + 1];
+        for (int j = 0; j <= n; j++)
+            previous[j] = j <= limit ? j : over;
+        for (int i = 1; i <= m; i++) {
+            char c = a.charAt(start + i - 1);
+            int from = Math.max(1, i - limit), to = Math.min(n, i + limit);
+            current[0] = i <= limit ? i : over;
+            if (from > 1)
+                current[from - 1] = over;
+            int rowMinimum = current[0];
+            for (int j = from; j <= to; j++) {
+                int cost = c == b.charAt(start + j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                current[j] = Math.min(value, over);
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (to < n)
+                current[to + 1] = over;
+            if (rowMinimum > limit)
+                return -1;
+            int[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+        return previous[n] <= limit ? previous[n] : -1;
+    }
+}
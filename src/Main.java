@@ -1,18 +1,15 @@
-import org.apache.commons.io.FileUtils;
-
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 public class Main {
 
     /**
-     * Three options here:
+     * Five options here:
      * 1. Diff two files locally
      * 2. Create a snapshot
      * 3. Diff two snapshots
+     * 4. Compare the indexed matching with the exhaustive matching on two files
+     * 5. Diff a file against the baseline of its previous version, which is replaced by the file
      * @param argv Needs to be implemented, such that the user can execute by commandline
      * @throws Exception .
      */
@@ -36,10 +33,15 @@ public class Main {
 //                "Administrator",
 //                "A6j2fna$_SZ54jRr",
 //                null,
+//                snapshot1,
 //                "snapshotoutputdir"
 //                );
         //Diff two snapshots
 //        diffSnapshots(snapshot1, snapshot2, snapshotoutputdir);
+        //Compare the matching quality
+//        compareMatching(dir + filename1, dir + filename2);
+        //Diff a file against its baseline
+//        diffWithBaseline(dir + "papa.baseline", dir + filename2, dir + outputfile);
 
     }
 
@@ -57,22 +59,41 @@ public class Main {
     }
 
     /**
-     * Compute differences between two snapshots
+     * Compute differences between a file and the baseline of its previous version, and make the file the new baseline
+     *
+     * @param baseline   The file holding the baseline. When it doesn't exist yet, the file is only saved as baseline
+     * @param filename   The file
+     * @param outputfile Output file
+     * @return List of actions
+     */
+    private static ArrayList<EditAction> diffWithBaseline(String baseline, String filename, String outputfile) throws Exception {
+        return new Differ(0.0, 0.0).diffWithBaseline(baseline, filename, outputfile);
+    }
+
+    /**
+     * Print the fraction of the exhaustive matches that is also found by the indexed matching
+     *
+     * @param filename1 File 1
+     * @param filename2 File 2
+     */
+    private static void compareMatching(String filename1, String filename2) throws Exception {
+        double quality = new Differ(0.0, 0.0).compareMatchQuality(filename1, filename2);
+        System.out.println(String.format("Indexed matching found %.1f%% of the exhaustive matches", quality * 100));
+    }
+
+    /**
+     * Compute differences between two snapshots. The pages are diffed in parallel, and a manifest with the results
+     * is written to the output directory. Pages with equal content hashes in the snapshot manifests are not diffed
      *
      * @param dir1      Directory holding snapshot 1
      * @param dir2      Directory holding snapshot 2
      * @param outputdir Output directory
      */
     private static void diffSnapshots(String dir1, String dir2, String outputdir) throws Exception {
-        Iterator it = FileUtils.iterateFiles(new File(dir1), null, false);
-        while (it.hasNext()) {
-            File current = (File) it.next();
-            String currentName = current.getName();
-            File currentMatch = new File(dir2 + currentName);
-            if (Files.isRegularFile(currentMatch.toPath()))
-                diffFiles(current.getPath(), currentMatch.getPath(), outputdir + currentName);
-
-        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        long timeout = 10 * 60 * 1000;//10 minutes per page
+        long memoryCap = Runtime.getRuntime().maxMemory() / threads;
+        new BatchDiffer(0.0, 0.0, threads, timeout, memoryCap).diff(dir1, dir2, outputdir);
     }
 
     /**
@@ -83,9 +104,13 @@ public class Main {
      * @param uname The username
      * @param pw    The password
      * @param k     The uniquely identifying key
+     * @param previousfolder The folder holding the previous snapshot, or null. Pages that didn't change refer to it
      * @param outputfolder The folder to which the snapshot is saved
      */
-    private static void snapshot(String ui, String ud, String uname, String pw, String k, String outputfolder) throws IOException {
-        new Snapshotter().snapshot(ui, ud, uname, pw, k, outputfolder);
+    private static void snapshot(String ui, String ud, String uname, String pw, String k, String previousfolder,
+                                 String outputfolder) throws IOException {
+        //Fetch 8 pages at the same time, but make at most 4 requests per second to the server
+        new Snapshotter(outputfolder, previousfolder, false, 8, 4.0, Snapshotter.RETRIES)
+                .snapshot(ui, ud, uname, pw, k, outputfolder);
     }
 }
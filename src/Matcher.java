@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This class is used to match children of two elements
@@ -9,13 +11,26 @@ public class Matcher {
      */
     private CustomElement left, right;
     /**
-     * Saved partners for each node, l2r and r2l
+     * The flat copies of the two input trees, on which the similarities are calculated
      */
-    private HashMap<CustomElement, Partner> leftPartners, rightPartners;
+    private FlatTree leftTree, rightTree;
     /**
-     * At any point, this list holds all the left nodes that still need a bestMatch
+     * The partners found so far, by the numbers of the nodes in this.leftTree and this.rightTree
      */
-    private ArrayList<CustomElement> unmatchedLefts;
+    private Matching matching;
+    /**
+     * At any point, this queue holds all the left nodes that still need a bestMatch: the free left nodes that still
+     * have to propose to a right node
+     */
+    private ArrayDeque<Integer> freeLefts;
+    /**
+     * The preferences of every left node, once they are calculated
+     */
+    private Preferences[] preferences;
+    /**
+     * All left and right nodes that are part of an identical subtree, matched before the actual matching starts
+     */
+    private HashSet<CustomElement> identicalNodes;
     /**
      * Minimum similarity that two nodes must have in order to be matched, regarding their attributes
      */
@@ -24,140 +39,544 @@ public class Matcher {
      * Minimum similarity that two nodes must have in order to be matched, regarding percentage of equal children
      */
     private double T;
+    /**
+     * Indicates whether every left node is compared with every right node. If not, left nodes are only compared with
+     * the shortlist of candidates returned by the CandidateIndex
+     */
+    private boolean exhaustive;
+    /**
+     * The number of threads that calculate node similarities. With more than one thread, the node similarities of
+     * a batch of left nodes are calculated in parallel before these left nodes are matched
+     */
+    private int threads;
+    /**
+     * The maximum number of left nodes in a batch, and the maximum number of node similarities calculated for a batch
+     */
+    private static final int BATCH_SIZE = 1024, MAX_BATCH_SIMILARITIES = 1 << 20;
+    /**
+     * Batches are split into tasks of at most this number of left nodes
+     */
+    private static final int TASK_SIZE = 8;
+    /**
+     * The maximum number of right nodes in the preferences of a left node
+     */
+    private static final int MAX_PREFERENCES = 64;
+    private static final int[] NONE_PROPOSED = new int[0];
+    /**
+     * The left nodes of the current batch, in the order in which they are matched, the node similarities calculated
+     * for them, and the position of the next left node to match
+     */
+    private int[] batch;
+    private NodeSimilarities[] batchSimilarities;
+    private int batchPosition;
 
     Matcher(double f, double t) {
+        this(f, t, true);
+    }
+
+    Matcher(double f, double t, boolean exhaustive) {
+        this(f, t, exhaustive, 1);
+    }
+
+    Matcher(double f, double t, boolean exhaustive, int threads) {
         this.F = f;
         this.T = t;
+        this.exhaustive = exhaustive;
+        this.threads = threads;
     }
 
     /**
-     * After it is determined that two elements are the currently best bestMatch for each other, save the bestMatch
-     *
-     * @param l     The left element
-     * @param r     The right element
-     * @param value The similarity between the two elements
+     * The node similarities of one left node with its candidates, calculated in advance. The node similarity does
+     * not depend on the partners found so far, as long as the left node has identifying characteristics, so it
+     * doesn't matter when it is calculated
      */
-    private void saveMatch(CustomElement l, CustomElement r, Double value) {
-        this.unmatchedLefts.remove(l);
-        leftPartners.put(l, new Partner(r, value));
-        rightPartners.put(r, new Partner(l, value));
+    private static class NodeSimilarities {
+        /**
+         * The right nodes, in ascending order, and their similarity with the left node
+         */
+        private int[] right;
+        private double[] similarity;
+
+        NodeSimilarities(int[] right, double[] similarity) {
+            this.right = right;
+            this.similarity = similarity;
+        }
+
+        /**
+         * @param rightNode A right node
+         * @return The similarity with the right node, or NaN if it wasn't calculated
+         */
+        double get(int rightNode) {
+            int i = Arrays.binarySearch(this.right, rightNode);
+            return i < 0 ? Double.NaN : this.similarity[i];
+        }
     }
 
     /**
-     * Check if the found bestMatch is currently the best bestMatch for both elements. Save the bestMatch if so.
+     * The right nodes a left node can be matched with, ranked from the highest to the lowest similarity with the left
+     * node. The left node proposes to them in this order, and the cursor points at the next right node to propose
+     * to. Only the first MAX_PREFERENCES right nodes are kept. If all of them reject the left node, the right nodes
+     * it didn't propose to yet are ranked, so no right node is skipped or proposed to twice
+     */
+    private static class Preferences {
+        private int[] right;
+        private double[] similarity;
+        private int cursor;
+        /**
+         * The right nodes of the earlier preferences of the left node, in ascending order, and whether there are right
+         * nodes of a lower rank than these preferences hold
+         */
+        private int[] proposed;
+        private boolean truncated;
+
+        Preferences(int[] right, double[] similarity, int[] proposed, boolean truncated) {
+            this.right = right;
+            this.similarity = similarity;
+            this.proposed = proposed;
+            this.truncated = truncated;
+        }
+
+        /**
+         * @return The right nodes the left node proposed to, in these preferences and the earlier ones, in ascending
+         * order
+         */
+        int[] proposedSoFar() {
+            int[] result = Arrays.copyOf(this.proposed, this.proposed.length + this.cursor);
+            System.arraycopy(this.right, 0, result, this.proposed.length, this.cursor);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /**
+     * Calculates the node similarities of a range of the current batch, by splitting it into smaller tasks
+     */
+    private class SimilarityTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private int from, to;
+        private int[] rightNodes;
+        private CandidateIndex index;
+
+        SimilarityTask(int from, int to, int[] rightNodes, CandidateIndex index) {
+            this.from = from;
+            this.to = to;
+            this.rightNodes = rightNodes;
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > TASK_SIZE) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new SimilarityTask(this.from, middle, this.rightNodes, this.index),
+                        new SimilarityTask(middle, this.to, this.rightNodes, this.index));
+            } else
+                for (int i = this.from; i < this.to; i++)
+                    batchSimilarities[i] = calculateNodeSimilarities(batch[i], this.rightNodes, this.index);
+        }
+    }
+
+    /**
+     * Let a free left node propose to a right node. The right node accepts if it is free, or if it prefers the left
+     * node over its current partner. In that case its current partner becomes free again, and is added to the end
+     * of this.freeLefts, from where it continues with its next preference.
      * We use the stable marriage problem to ensure a perfect matching
      * https://en.wikipedia.org/wiki/Stable_marriage_problem
      *
-     * @param l     The left element
-     * @param r     The right element
-     * @param value The similarity between the two elements
-     */
-    private void updateMatchIfCurrentBest(CustomElement l, CustomElement r, Double value) {
-        Partner currentPartnerOfLeft = leftPartners.get(l);
-        Partner currentPartnerOfRight = rightPartners.get(r);
-        if (currentPartnerOfLeft != null && currentPartnerOfLeft.getSimilarity() > value)//l currently has a better
-            // partner than one being added, l and r are not matched
-            return;
-        if (currentPartnerOfRight != null) {//r already has a match
-            if (value > currentPartnerOfRight.getSimilarity()) {//r prefers l over its current partner
-                if (currentPartnerOfLeft != null)//If l already has a partner, remove that partner, as l is now matched to r
-                    rightPartners.remove(currentPartnerOfLeft.getPartner());
-                //The old partner of r is unmatched
-                unmatchedLefts.add(currentPartnerOfRight.getPartner());
-                leftPartners.remove(currentPartnerOfRight.getPartner());
-                //The new partner of r, l, becomes matched
-                saveMatch(l, r, value);
-            } else {//r currently has a better partner than l, so l and r are not matched (add for clarification)
-                return;
-            }
-        } else {//r is unmatched; l and r become partners
-            if (currentPartnerOfLeft != null)//If l already has a partner, remove that partner, as l is now matched to r
-                rightPartners.remove(currentPartnerOfLeft.getPartner());
-            saveMatch(l, r, value);
+     * @param l     The left node
+     * @param r     The right node
+     * @param value The similarity between the two nodes
+     * @return Whether r accepted l
+     */
+    private boolean propose(int l, int r, double value) {
+        int currentPartnerOfRight = this.matching.getLeftPartner(r);
+        if (currentPartnerOfRight != Matching.NONE) {//r already has a match
+            if (value <= this.matching.getSimilarity(currentPartnerOfRight))//r currently has a better partner than l
+                return false;
+            //r prefers l over its current partner, which is unmatched
+            this.matching.unmatch(currentPartnerOfRight);
+            this.freeLefts.add(currentPartnerOfRight);
         }
+        this.matching.match(l, r, value);
+        return true;
     }
 
     /**
      * This matching algorithm is different from the paper. It describes an algorithm that calculates 'good matches',
-     * and not 'best matches'. We use the solution of the stable marriage problem, to ensure the best possible matches.
+     * and not 'best matches'. We use the solution of the stable marriage problem, to ensure the best possible matches:
+     * the free left nodes propose to the right nodes in order of preference, see Preferences, and the right nodes
+     * keep the left node with the highest similarity.
      * This algorithm is more time-consuming, but gives better results.
      *
      * @param l The left root
      * @param r The right root
      * @return Two maps that bestMatch left nodes to right nodes and vice versa.
-     * @throws Exception This exception is thrown when the sizes of the l2r map and r2l map don't match
+     * @throws Exception This exception is thrown when the matching is interrupted
      */
     ArrayList<HashMap<CustomElement, CustomElement>> bestMatch(CustomElement l, CustomElement r) throws Exception {
+        return outputResult(this.match(l, r));
+    }
+
+    /**
+     * Match two trees, see bestMatch. The nodes of both trees get their number in the FlatTree of their tree as id,
+     * by which the matching addresses them
+     *
+     * @param l The left root
+     * @param r The right root
+     * @return The matching
+     * @throws InterruptedException Thrown when the thread is interrupted, for example when a diff takes too long
+     */
+    Matching match(CustomElement l, CustomElement r) throws InterruptedException {
         this.left = l;
         this.right = r;
-        this.leftPartners = new HashMap<>();
-        this.rightPartners = new HashMap<>();
-        //Loop over the left nodes bottom-up
-        this.unmatchedLefts = Utils.postOrderTraverse(this.left);
-        ArrayList<CustomElement> rightNodes = Utils.postOrderTraverse(this.right);
-        //We always match the roots. To do so, we match them now and we remove the right and left root from the list
-        this.updateMatchIfCurrentBest(this.left, this.right, 1.0);
-        rightNodes.remove(this.right);
-        unmatchedLefts.remove(this.left);
-        while (unmatchedLefts.size() > 0) {
-            CustomElement leftNode = unmatchedLefts.remove(0);
-            if (leftNode.isUnidentifiableLeaf())//Don't match these elements
+        StringPool pool = new StringPool();
+        this.leftTree = new FlatTree(this.left, pool);
+        this.rightTree = new FlatTree(this.right, pool);
+        this.matching = new Matching(this.leftTree, this.rightTree);
+        //We always match the roots. To do so, we match them now, and we leave the left root out of the queue
+        this.matching.match(this.leftTree.root(), this.rightTree.root(), 1.0);
+        //Match identical subtrees up front, and don't consider their nodes anymore
+        this.matchIdenticalSubtrees();
+        //Loop over the left nodes bottom-up. The nodes of a FlatTree are numbered in post order
+        this.freeLefts = new ArrayDeque<>(this.leftTree.size());
+        for (int i = 0; i < this.leftTree.root(); i++)
+            if (!this.identicalNodes.contains(this.leftTree.getElement(i)))
+                this.freeLefts.add(i);
+        this.preferences = new Preferences[this.leftTree.size()];
+        int[] rightNodes = this.rightCandidates(false);
+        CandidateIndex index = this.exhaustive ? null : new CandidateIndex(this.rightTree, this.rightCandidates(true));
+        ForkJoinPool forkJoinPool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+        this.batch = new int[0];
+        this.batchPosition = 0;
+        try {
+            this.matchLeftNodes(rightNodes, index, forkJoinPool);
+        } finally {
+            if (forkJoinPool != null)
+                forkJoinPool.shutdown();
+        }
+        return this.matching;
+    }
+
+    /**
+     * Match the left nodes in this.freeLefts, until all of them are matched or have no possible partner left. A left
+     * node ranks its preferences when it is taken from the queue for the first time. When it is freed again later, it
+     * continues with the right node after the one it was matched with, instead of comparing all right nodes again
+     *
+     * @param rightNodes   The right nodes that can be matched
+     * @param index        The candidate index of the right nodes, or null if every left node is compared with every
+     *                     right node
+     * @param forkJoinPool The pool that calculates the node similarities in parallel, or null if they are calculated
+     *                     when needed
+     * @throws InterruptedException Thrown when the thread is interrupted, for example when a diff takes too long
+     */
+    private void matchLeftNodes(int[] rightNodes, CandidateIndex index, ForkJoinPool forkJoinPool) throws InterruptedException {
+        while (!this.freeLefts.isEmpty()) {
+            if (Thread.interrupted())
+                throw new InterruptedException("The matching was interrupted");
+            int leftNode = this.freeLefts.poll();
+            Preferences preferences = this.preferences[leftNode];
+            NodeSimilarities precalculated = forkJoinPool == null || preferences != null ? null :
+                    this.nextInBatch(leftNode, rightNodes, index, forkJoinPool);
+            if (leftTree.isUnidentifiableLeaf(leftNode))//Don't match these elements
                 continue;
-            double currentT = leftNode.getNrOfLeafsInSubtree() <= 4 ? Math.min(0.4, this.T) : this.T;//Lower the threshold for small
-            // subtrees
-            for (CustomElement rightNode : rightNodes) {
-                if (rightNode.isUnidentifiableLeaf())//Don't match these elements
+            if (preferences == null)
+                preferences = this.preferences[leftNode] = this.rank(leftNode, NONE_PROPOSED, rightNodes, index,
+                        precalculated);
+            //Propose to the right nodes in order of preference, until one of them accepts
+            while (true) {
+                if (preferences.cursor >= preferences.right.length) {
+                    if (!preferences.truncated)//No possible partner left
+                        break;
+                    preferences = this.preferences[leftNode] = this.rank(leftNode, preferences.proposedSoFar(),
+                            rightNodes, index, null);
                     continue;
-                //If it is possible that rightNode matches better with leftNode than it's current bestMatch:
-                Partner currentPartnerOfRight = rightPartners.get(rightNode);
-                if (currentPartnerOfRight == null || currentPartnerOfRight.getSimilarity() < 1 || (currentPartnerOfRight.getSimilarity() >= 1 && !rightNode.isEqualTo(currentPartnerOfRight.getPartner(), false))) {
-                    //Calculate the similarity of the characteristics
-                    Double nodeSimilarity = SimilarityCalculator.nodeSimilarity(leftNode, rightNode, this.F, this.leftPartners);
-                    //Calculate the similarity expressed using the number of equal children
-                    Double childSimilarity = SimilarityCalculator.childSimilarity(leftNode, rightNode, leftPartners);
-                    //Take the average of the two similarities
-                    //Save the bestMatch if they are similar enough, and if its the current best bestMatch for left and right
-                    if ((nodeSimilarity <= -1 || nodeSimilarity >= this.F) && (childSimilarity <= -1 || childSimilarity >= currentT)) {
-                        Double combined = 0.0;
-                        if (nodeSimilarity > -1)
-                            combined += nodeSimilarity;
-                        if (childSimilarity > -1) {
-                            if (combined > 0)
-                                combined = (combined + childSimilarity) / 2;//Define the similarity as the average of the two
-                            else
-                                combined = childSimilarity;//match is only <= -1 if the nodes have tags without any
-                            // identifiers. In that case, we don't want to take it into account
-                        }
-                        updateMatchIfCurrentBest(leftNode, rightNode, combined);
-                        if (combined >= 1 && leftNode.isEqualTo(rightNode, true)) {//No better bestMatch will be found
-                            // in this case, we also check isEqualTo, because of the getSimilarityMultiplier, more than 1 element can have a similarity >1, we
-                            // keep comparing if the elements are not exactly equal, as its possible we find another node with a higher similarity.
-                            break;
-                        }
-                    }
                 }
+                int i = preferences.cursor++;
+                if (this.propose(leftNode, preferences.right[i], preferences.similarity[i]))
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Rank the right nodes a left node can be matched with. These are the candidates that are similar enough, ranked
+     * from the highest to the lowest similarity. The left node prefers the later right node in post order of two
+     * right nodes that are equally similar. Only the best MAX_PREFERENCES right nodes are kept, in ranked order, while
+     * the candidates are compared
+     *
+     * @param leftNode      The left node
+     * @param proposed      The right nodes the left node proposed to already, in ascending order, which are skipped
+     * @param rightNodes    The right nodes that can be matched
+     * @param index         The candidate index, or null
+     * @param precalculated The node similarities that were calculated in advance, or null
+     * @return The preferences, holding at most MAX_PREFERENCES right nodes
+     */
+    private Preferences rank(int leftNode, int[] proposed, int[] rightNodes, CandidateIndex index,
+                             NodeSimilarities precalculated) {
+        double currentT = leftTree.getNrOfLeafsInSubtree(leftNode) <= 4 ? Math.min(0.4, this.T) : this.T;//Lower the threshold for small
+        // subtrees
+        int[] candidates = this.exhaustive ? rightNodes :
+                index.candidates(this.leftTree, leftNode, leftNode / (double) this.leftTree.size(), this.matching);
+        int[] right = new int[Math.min(candidates.length, MAX_PREFERENCES)];
+        double[] similarity = new double[right.length];
+        int count = 0;
+        boolean truncated = false;
+        for (int rightNode : candidates) {
+            if (proposed.length > 0 && Arrays.binarySearch(proposed, rightNode) >= 0)
+                continue;
+            //Skip rightNode if it is matched to an equal node already, as it won't prefer leftNode over that node
+            int currentPartnerOfRight = this.matching.getLeftPartner(rightNode);
+            if (currentPartnerOfRight != Matching.NONE && this.matching.getSimilarity(currentPartnerOfRight) >= 1 &&
+                    rightTree.isEqualTo(rightNode, leftTree, currentPartnerOfRight))
+                continue;
+            //Calculate the similarity of the characteristics
+            double nodeSimilarity = precalculated == null ? Double.NaN : precalculated.get(rightNode);
+            if (Double.isNaN(nodeSimilarity))
+                nodeSimilarity = SimilarityCalculator.nodeSimilarity(leftTree, leftNode, rightTree, rightNode, this.F, this.matching);
+            //Calculate the similarity expressed using the number of equal children
+            double childSimilarity = SimilarityCalculator.childSimilarity(leftTree, leftNode, rightTree, rightNode, this.matching);
+            //Keep rightNode if they are similar enough
+            if ((nodeSimilarity <= -1 || nodeSimilarity >= this.F) && (childSimilarity <= -1 || childSimilarity >= currentT)) {
+                double combined = 0.0;
+                if (nodeSimilarity > -1)
+                    combined += nodeSimilarity;
+                if (childSimilarity > -1) {
+                    if (combined > 0)
+                        combined = (combined + childSimilarity) / 2;//Define the similarity as the average of the two
+                    else
+                        combined = childSimilarity;//match is only <= -1 if the nodes have tags without any
+                    // identifiers. In that case, we don't want to take it into account
+                }
+                //Insert rightNode at its rank. When the preferences are full, the right node of the lowest rank drops out
+                if (count == right.length) {
+                    truncated = true;
+                    if (!prefers(combined, rightNode, similarity[count - 1], right[count - 1]))
+                        continue;
+                    count--;
+                }
+                int i = count++;
+                for (; i > 0 && prefers(combined, rightNode, similarity[i - 1], right[i - 1]); i--) {
+                    right[i] = right[i - 1];
+                    similarity[i] = similarity[i - 1];
+                }
+                right[i] = rightNode;
+                similarity[i] = combined;
+                if (combined >= 1 && leftTree.isEqualTo(leftNode, rightTree, rightNode))//No better bestMatch will be
+                    // found in this case, and rightNode is ranked first
+                    break;
             }
         }
-        if (leftPartners.size() != rightPartners.size())
-            throw new Exception("The partner mappings don't bestMatch!");
-        return outputResult();
+        if (count < right.length) {
+            right = Arrays.copyOf(right, count);
+            similarity = Arrays.copyOf(similarity, count);
+        }
+        return new Preferences(right, similarity, proposed, truncated);
+    }
+
+    /**
+     * @return Whether a left node ranks right node r1 with similarity s1 before right node r2 with similarity s2
+     */
+    private static boolean prefers(double s1, int r1, double s2, int r2) {
+        return s1 != s2 ? s1 > s2 : r1 > r2;
+    }
+
+    /**
+     * Return the node similarities that were calculated in advance for a left node that isn't ranked yet. When the
+     * current batch is finished, the next batch is formed by this left node and the left nodes that are next in
+     * this.freeLefts and aren't ranked yet, and their node similarities are calculated in parallel. Left nodes are
+     * always taken from the start of this.freeLefts, and freed nodes are added to the end, so the left nodes are
+     * ranked in the order of the batch. The partners found so far are only read while the batch is calculated, and
+     * the node similarities don't depend on them, so the matching is exactly the same as without the pool
+     *
+     * @param leftNode     The left node that is matched next
+     * @param rightNodes   The right nodes that can be matched
+     * @param index        The candidate index, or null
+     * @param forkJoinPool The pool
+     * @return The node similarities, or null if none were calculated for the left node
+     */
+    private NodeSimilarities nextInBatch(int leftNode, int[] rightNodes, CandidateIndex index, ForkJoinPool forkJoinPool) {
+        if (this.batchPosition >= this.batch.length) {
+            int size = Math.min(this.freeLefts.size() + 1, index == null ?
+                    Math.max(1, MAX_BATCH_SIMILARITIES / Math.max(1, rightNodes.length)) : BATCH_SIZE);
+            this.batch = new int[size];
+            this.batch[0] = leftNode;
+            int count = 1;
+            for (Iterator<Integer> free = this.freeLefts.iterator(); count < size && free.hasNext(); ) {
+                int next = free.next();
+                if (this.preferences[next] == null)
+                    this.batch[count++] = next;
+            }
+            size = count;
+            this.batch = Arrays.copyOf(this.batch, size);
+            this.batchSimilarities = new NodeSimilarities[size];
+            this.batchPosition = 0;
+            forkJoinPool.invoke(new SimilarityTask(0, size, rightNodes, index));
+        }
+        if (this.batch[this.batchPosition] != leftNode)//Can't happen, as long as the order of matching is kept
+            return null;
+        return this.batchSimilarities[this.batchPosition++];
+    }
+
+    /**
+     * Calculate the node similarities of a left node with its candidates. Left nodes without any identifying
+     * characteristics are skipped, as their similarity depends on the partner of their parent. Like the matching
+     * loop, the calculation stops at a candidate that is likely to be equal to the left node; if the matching loop
+     * needs more similarities after all, these are calculated in the loop
+     *
+     * @param leftNode   The left node
+     * @param rightNodes The right nodes that can be matched
+     * @param index      The candidate index, or null
+     * @return The node similarities, or null
+     */
+    private NodeSimilarities calculateNodeSimilarities(int leftNode, int[] rightNodes, CandidateIndex index) {
+        if (leftTree.isUnidentifiableLeaf(leftNode) || (leftTree.getAttributeCount(leftNode) <= 0 &&
+                leftTree.getStyleCount(leftNode) <= 0 && leftTree.getText(leftNode) == StringPool.EMPTY &&
+                leftTree.getTail(leftNode) == StringPool.EMPTY))
+            return null;
+        int[] candidates = index == null ? rightNodes :
+                index.candidates(this.leftTree, leftNode, leftNode / (double) this.leftTree.size(), this.matching);
+        double[] similarities = new double[candidates.length];
+        int count = 0;
+        while (count < candidates.length) {
+            int rightNode = candidates[count];
+            similarities[count] = SimilarityCalculator.nodeSimilarity(leftTree, leftNode, rightTree, rightNode, this.F, this.matching);
+            count++;
+            if (similarities[count - 1] >= 1 && leftTree.isEqualTo(leftNode, rightTree, rightNode))
+                break;
+        }
+        return new NodeSimilarities(count < candidates.length ? Arrays.copyOf(candidates, count) : candidates,
+                count < candidates.length ? Arrays.copyOf(similarities, count) : similarities);
+    }
+
+    /**
+     * Return the right nodes that can be matched, in post order. These are all right nodes except for the root,
+     * the nodes in identical subtrees and the unidentifiable leafs
+     *
+     * @param unidentifiableLeafs Whether the unidentifiable leafs are included. The CandidateIndex needs them, as it
+     *                            measures the distance to the expected position of a partner in this list
+     * @return The numbers of the nodes in this.rightTree
+     */
+    private int[] rightCandidates(boolean unidentifiableLeafs) {
+        int[] result = new int[this.rightTree.size()];
+        int count = 0;
+        for (int i = 0; i < this.rightTree.root(); i++)
+            if (!this.identicalNodes.contains(this.rightTree.getElement(i)) &&
+                    (unidentifiableLeafs || !this.rightTree.isUnidentifiableLeaf(i)))
+                result[count++] = i;
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Match all subtrees that occur exactly once in both trees and that are identical, using the subtree hashes.
+     * The left tree is traversed top-down, so only the largest identical subtrees are matched. The nodes in these
+     * subtrees are matched to their counterparts, and saved in this.identicalNodes.
+     * This changes the matching, also when it is exhaustive. The stable marriage only compares nodes and their
+     * subtrees, so a node that is repeated on the page, like a paragraph with the same text in several sections, has
+     * the same similarity with every copy, and may be matched to a copy in another section. Nodes in an unchanged
+     * subtree are matched in place instead, which saves the moves and deletes that the other pairing costs: on the
+     * examples the edit scripts become shorter or stay the same, never longer
+     */
+    private void matchIdenticalSubtrees() {
+        this.identicalNodes = new HashSet<>();
+        int leftRoot = this.leftTree.root(), rightRoot = this.rightTree.root();
+        if (leftTree.getSubtreeHash(leftRoot) == rightTree.getSubtreeHash(rightRoot) &&
+                leftTree.isEqualTo(leftRoot, rightTree, rightRoot)) {
+            this.matchIdenticalSubtree(leftRoot, rightRoot);
+            return;
+        }
+        HashMap<Long, Integer> rightHashes = new HashMap<>();
+        HashSet<Long> duplicates = new HashSet<>();
+        for (int i = 0; i < rightTree.size(); i++)
+            if (rightHashes.put(rightTree.getSubtreeHash(i), i) != null)
+                duplicates.add(rightTree.getSubtreeHash(i));
+        HashSet<Long> leftHashes = new HashSet<>();
+        for (int i = 0; i < leftRoot; i++)
+            if (!leftHashes.add(leftTree.getSubtreeHash(i)))
+                duplicates.add(leftTree.getSubtreeHash(i));
+        int[] queue = new int[leftTree.size()];
+        int head = 0, tail = 0;
+        for (int c = leftTree.getFirstChild(leftRoot); c >= 0; c = leftTree.getNextSibling(c))
+            queue[tail++] = c;
+        while (head < tail) {
+            int leftNode = queue[head++];
+            long hash = leftTree.getSubtreeHash(leftNode);
+            Integer rightNode = rightHashes.get(hash);
+            if (rightNode != null && rightNode != rightRoot && !duplicates.contains(hash) &&
+                    !leftTree.isUnidentifiableLeaf(leftNode) && leftTree.isEqualTo(leftNode, rightTree, rightNode))
+                this.matchIdenticalSubtree(leftNode, rightNode);
+            else
+                for (int c = leftTree.getFirstChild(leftNode); c >= 0; c = leftTree.getNextSibling(c))
+                    queue[tail++] = c;
+        }
+    }
+
+    /**
+     * Match all nodes in two identical subtrees
+     *
+     * @param l The left root of the subtree
+     * @param r The right root of the subtree
+     */
+    private void matchIdenticalSubtree(int l, int r) {
+        CustomElement leftElement = this.leftTree.getElement(l), rightElement = this.rightTree.getElement(r);
+        if (leftElement != this.left)//The roots are already matched
+            this.matching.match(l, r, 1.0);
+        this.identicalNodes.add(leftElement);
+        this.identicalNodes.add(rightElement);
+        for (int lc = leftTree.getFirstChild(l), rc = rightTree.getFirstChild(r); lc >= 0;
+             lc = leftTree.getNextSibling(lc), rc = rightTree.getNextSibling(rc))
+            this.matchIdenticalSubtree(lc, rc);
+    }
+
+    /**
+     * Return all nodes that were matched to an identical node by the pre-pass of the last matching. The Differ
+     * doesn't need to visit the descendants of these nodes, as they won't change
+     *
+     * @return The nodes of both trees
+     */
+    HashSet<CustomElement> getIdenticalNodes() {
+        return this.identicalNodes;
+    }
+
+    /**
+     * Match two trees with the candidate index and exhaustively, and compare the results. This is used to check that
+     * the shortlists of the CandidateIndex don't lower the quality of the matching
+     *
+     * @param l The left root
+     * @param r The right root
+     * @param f Minimum similarity regarding the attributes
+     * @param t Minimum similarity regarding the children
+     * @return The fraction of the exhaustive matches that is also found by the indexed matching
+     * @throws Exception Thrown when one of the matchings fails
+     */
+    static double compareToExhaustive(CustomElement l, CustomElement r, double f, double t) throws Exception {
+        HashMap<CustomElement, CustomElement> indexed = new Matcher(f, t, false).bestMatch(l, r).get(0);
+        HashMap<CustomElement, CustomElement> exhaustive = new Matcher(f, t, true).bestMatch(l, r).get(0);
+        if (exhaustive.size() <= 0)
+            return 1.0;
+        int equal = 0;
+        for (Map.Entry<CustomElement, CustomElement> entry : exhaustive.entrySet())
+            if (entry.getValue().equals(indexed.get(entry.getKey())))
+                equal++;
+        return equal / (double) exhaustive.size();
+    }
+
+    /**
+     * @return The cache of the string similarities of the last bestMatch, which holds the numbers of hits and misses
+     */
+    SimilarityCache getSimilarityCache() {
+        return this.leftTree.getPool().getSimilarityCache();
     }
 
     /**
      * After the bestMatch is complete, return the data in the desired format
      *
+     * @param matching The matching
      * @return l2r and r2l in a list
      */
-    private ArrayList<HashMap<CustomElement, CustomElement>> outputResult() {
+    private static ArrayList<HashMap<CustomElement, CustomElement>> outputResult(Matching matching) {
         ArrayList<HashMap<CustomElement, CustomElement>> result = new ArrayList<>();
-        HashMap<CustomElement, CustomElement> l2r = new HashMap<>();
-        HashMap<CustomElement, CustomElement> r2l = new HashMap<>();
-        for (Map.Entry<CustomElement, Partner> entry : leftPartners.entrySet())
-            l2r.put(entry.getKey(), entry.getValue().getPartner());
-        for (Map.Entry<CustomElement, Partner> entry : rightPartners.entrySet())
-            r2l.put(entry.getKey(), entry.getValue().getPartner());
-        result.add(l2r);
-        result.add(r2l);
+        result.add(matching.toLeftMap());
+        result.add(matching.toRightMap());
         return result;
     }
 }
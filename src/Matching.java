@@ -0,0 +1,197 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The partners of the nodes of a left and a right tree, as found by the Matcher and extended by the Differ. The nodes
+ * are addressed by their id, which is their dense number in the FlatTree of their tree, see CustomElement.getId().
+ * The partners are kept in two int arrays, and the similarity of every pair in a double array that is indexed by the
+ * left node, so looking up a partner is an array access instead of a hash lookup. Nodes that are added to the left
+ * tree later on, like the clones of inserted nodes, get the next free id when they are matched.
+ * The methods that take CustomElements are a thin facade over the ids
+ */
+class Matching {
+    /**
+     * The nodes by id
+     */
+    private CustomElement[] leftNodes, rightNodes;
+    /**
+     * The partner of every left node and of every right node, or NONE
+     */
+    private int[] leftPartners, rightPartners;
+    /**
+     * The similarity of every left node with its partner
+     */
+    private double[] similarities;
+    /**
+     * The number of ids of left nodes that are in use, and the number of pairs
+     */
+    private int leftSize, size;
+    static final int NONE = -1;
+
+    /**
+     * Create an empty matching of two trees
+     *
+     * @param leftTree  The left tree, whose numbers are the ids of the left nodes
+     * @param rightTree The right tree, whose numbers are the ids of the right nodes
+     */
+    Matching(FlatTree leftTree, FlatTree rightTree) {
+        this.leftSize = leftTree.size();
+        this.leftNodes = new CustomElement[this.leftSize];
+        for (int i = 0; i < this.leftSize; i++)
+            this.leftNodes[i] = leftTree.getElement(i);
+        this.rightNodes = new CustomElement[rightTree.size()];
+        for (int i = 0; i < this.rightNodes.length; i++)
+            this.rightNodes[i] = rightTree.getElement(i);
+        this.leftPartners = new int[this.leftSize];
+        Arrays.fill(this.leftPartners, NONE);
+        this.rightPartners = new int[this.rightNodes.length];
+        Arrays.fill(this.rightPartners, NONE);
+        this.similarities = new double[this.leftSize];
+    }
+
+    /**
+     * @param left A left node
+     * @return The partner of the left node, or NONE
+     */
+    int getRightPartner(int left) {
+        return this.leftPartners[left];
+    }
+
+    /**
+     * @param right A right node
+     * @return The partner of the right node, or NONE
+     */
+    int getLeftPartner(int right) {
+        return this.rightPartners[right];
+    }
+
+    /**
+     * @param left A left node that has a partner
+     * @return The similarity of the left node with its partner
+     */
+    double getSimilarity(int left) {
+        return this.similarities[left];
+    }
+
+    /**
+     * Match two nodes that don't have a partner
+     *
+     * @param left       The left node
+     * @param right      The right node
+     * @param similarity The similarity of the two nodes
+     */
+    void match(int left, int right, double similarity) {
+        this.leftPartners[left] = right;
+        this.rightPartners[right] = left;
+        this.similarities[left] = similarity;
+        this.size++;
+    }
+
+    /**
+     * Remove the pair of a left node, if it has a partner
+     *
+     * @param left The left node
+     */
+    void unmatch(int left) {
+        int right = this.leftPartners[left];
+        if (right != NONE) {
+            this.rightPartners[right] = NONE;
+            this.leftPartners[left] = NONE;
+            this.size--;
+        }
+    }
+
+    /**
+     * @return The number of pairs
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return The number of ids of the right nodes
+     */
+    int rightSize() {
+        return this.rightNodes.length;
+    }
+
+    /**
+     * @return The id of a left node, or NONE if it isn't a node of the left tree of this matching
+     */
+    private int leftId(CustomElement left) {
+        int id = left.getId();
+        return id >= 0 && id < this.leftSize && this.leftNodes[id] == left ? id : NONE;
+    }
+
+    /**
+     * @return The id of a right node, or NONE if it isn't a node of the right tree of this matching
+     */
+    private int rightId(CustomElement right) {
+        int id = right.getId();
+        return id >= 0 && id < this.rightNodes.length && this.rightNodes[id] == right ? id : NONE;
+    }
+
+    /**
+     * @param left A left node
+     * @return The partner of the left node, or null
+     */
+    CustomElement getRightPartner(CustomElement left) {
+        int id = this.leftId(left);
+        return id == NONE || this.leftPartners[id] == NONE ? null : this.rightNodes[this.leftPartners[id]];
+    }
+
+    /**
+     * @param right A right node
+     * @return The partner of the right node, or null
+     */
+    CustomElement getLeftPartner(CustomElement right) {
+        int id = this.rightId(right);
+        return id == NONE || this.rightPartners[id] == NONE ? null : this.leftNodes[this.rightPartners[id]];
+    }
+
+    /**
+     * Match two equal nodes that don't have a partner. A left node that was added to the left tree after the
+     * matching was created gets the next free id
+     *
+     * @param left  The left node
+     * @param right The right node
+     */
+    void match(CustomElement left, CustomElement right) {
+        int id = this.leftId(left);
+        if (id == NONE) {
+            if (this.leftSize >= this.leftNodes.length) {
+                int capacity = Math.max(16, this.leftNodes.length * 2);
+                this.leftNodes = Arrays.copyOf(this.leftNodes, capacity);
+                this.leftPartners = Arrays.copyOf(this.leftPartners, capacity);
+                this.similarities = Arrays.copyOf(this.similarities, capacity);
+            }
+            id = this.leftSize++;
+            this.leftNodes[id] = left;
+            this.leftPartners[id] = NONE;
+            left.setId(id);
+        }
+        this.match(id, this.rightId(right), 1.0);
+    }
+
+    /**
+     * @return The pairs as a map from the left nodes to their partners
+     */
+    HashMap<CustomElement, CustomElement> toLeftMap() {
+        HashMap<CustomElement, CustomElement> map = new HashMap<>();
+        for (int i = 0; i < this.leftSize; i++)
+            if (this.leftPartners[i] != NONE)
+                map.put(this.leftNodes[i], this.rightNodes[this.leftPartners[i]]);
+        return map;
+    }
+
+    /**
+     * @return The pairs as a map from the right nodes to their partners
+     */
+    HashMap<CustomElement, CustomElement> toRightMap() {
+        HashMap<CustomElement, CustomElement> map = new HashMap<>();
+        for (int i = 0; i < this.rightNodes.length; i++)
+            if (this.rightPartners[i] != NONE)
+                map.put(this.rightNodes[i], this.leftNodes[this.rightPartners[i]]);
+        return map;
+    }
+}
@@ -1,143 +1,218 @@
 import org.jdom2.Attribute;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
- * The task of this class is to write a CustomElement in HTML format to a file
+ * The task of this class is to write a CustomElement in HTML format to a file, or to a stream. The HTML is streamed
+ * through a single buffered UTF-8 writer: the tags are appended piece by piece, and the indentation of every level is
+ * created once. Attribute values, styles and popup texts are escaped, such that they cannot end their attribute.
+ * Texts and tails are written as they are, as they contain the <ins> and <del> elements of the TextDiffer.
+ * The ghost of a moved node is written as the node itself, marked as deleted, see CustomElement.ghost()
  */
 class Outputter {
-    private PrintWriter out;
-
-    void output(CustomElement root, String filename) throws IOException {
-        openWriter(filename);
-        write(root, 0);
-        printLine("</html>", 0);
-        closeWriter();
-    }
+    /**
+     * The size of the buffer of the writer, in chars
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    /**
+     * The template that imports the js and css, and its contents once it is read
+     */
+    private static final String TEMPLATE = "src/htmls/template.html";
+    private static volatile byte[] template;
 
+    private Writer out;
     /**
-     * Write an element to the outputfile
-     *
-     * @param root  The element
-     * @param level Used for indenting spaces for different levels inside the document
+     * The indentation per level, 4 spaces per level. It is extended when a deeper level is written
      */
-    void write(CustomElement root, Integer level) {
-        if(root.getName().equals("style"))
-            System.out.println("");
-        root.addClassesForOutputter();
-        printLine(open(root) + attributes(root) + styles(root) + popupTexts(root) + close(), level);
-        level++;
-        printLine(root.getCustomText(), level);
-        for (CustomElement child : root.getCustomChildren(true))
-            write(child, level);
-        level--;
-        printLine(finish(root), level);
-        printLine(root.getTail(), level);
-    }
+    private ArrayList<String> indents = new ArrayList<>();
 
     /**
-     * Return the popuptexts as HTML Attribute
+     * Write an element to a file, after a template that imports the js and css
      *
-     * @param root The element
-     * @return The popuptexts
+     * @param root     The element
+     * @param filename The filename
+     * @throws IOException Thrown when the template cannot be read or the file cannot be written
      */
-    String popupTexts(CustomElement root) {
-        if (root.hasPopupTexts())
-            return String.format("popup=\"%s\"", root.popupTextsToHtml());
-        return "";
+    void output(CustomElement root, String filename) throws IOException {
+        try (OutputStream file = new FileOutputStream(filename)) {
+            output(root, file);
+        }
     }
 
     /**
-     * Return the styles as an HTML attribute
+     * Write an element to a stream, after the template, as a complete html document
      *
      * @param root The element
-     * @return The styles
+     * @param out  The stream to write to. It is flushed, but not closed
+     * @throws IOException Thrown when the template cannot be read or the stream cannot be written
      */
-    String styles(CustomElement root) {
-        if (root.getStyleAttributes().size() <= 0)
-            return "";
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, String> entry : root.getStyleAttributes().entrySet())
-            sb.append(String.format("%s:%s; ", entry.getKey(), entry.getValue()));
-        return String.format("style=\"%s\"", sb.toString());
+    void output(CustomElement root, OutputStream out) throws IOException {
+        out.write(template());
+        this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        write(root, 0, false);
+        printLine("</html>", 0);
+        this.out.flush();
     }
 
     /**
-     * Return the attributes in html format
+     * Return the template that imports the js and css. It is read once, and shared by all Outputters
      *
-     * @param root The element
-     * @return The attributes in format "key1=\"val1\" key2=\"val2\" "
+     * @return The bytes of the template
+     * @throws IOException Thrown when the template cannot be read
      */
-    String attributes(CustomElement root) {
-        StringBuilder sb = new StringBuilder();
-        for (Attribute a : root.getAttributes())
-            sb.append(String.format("%s=\"%s\" ", a.getName(), a.getValue()));
-        return sb.toString();
+    private static byte[] template() throws IOException {
+        byte[] bytes = template;
+        if (bytes == null)
+            template = bytes = Files.readAllBytes(new File(TEMPLATE).toPath());
+        return bytes;
     }
 
     /**
-     * Open an element
+     * Write an element to the output. A ghost is written as the element it is the ghost of, with the classes and
+     * popup texts of the ghost. The subtree of that element is written plainly: without the classes and popup texts
+     * of the edits, and without deleted elements, as these belong to its new position
      *
-     * @param e The element
-     * @return The opening tag in format "<tagname "
+     * @param root  The element
+     * @param level Used for indenting spaces for different levels inside the document
+     * @param plain Indicates whether root is written plainly, as it is part of a ghost
+     * @throws IOException Thrown when the output cannot be written
      */
-    String open(CustomElement e) {
-        return String.format("<%s ", e.getName());
+    private void write(CustomElement root, int level, boolean plain) throws IOException {
+        CustomElement element = root.getGhostOf() == null ? root : root.getGhostOf();
+        String classes = plain ? null : root.getEditClasses();
+        indent(level);
+        this.out.write('<');
+        this.out.write(element.getName());
+        this.out.write(' ');
+        boolean hasClass = false;
+        for (Attribute a : element.getAttributes()) {
+            if (classes != null && a.getName().equals("class")) {
+                attribute(a.getName(), a.getValue() + " " + classes);
+                hasClass = true;
+            } else
+                attribute(a.getName(), a.getValue());
+        }
+        if (classes != null && !hasClass)
+            attribute("class", classes);
+        styles(element);
+        if (!plain && root.hasPopupTexts()) {
+            this.out.write("popup=\"");
+            escape(root.popupTextsToHtml());
+            this.out.write('"');
+        }
+        this.out.write('>');
+        this.out.write(LINE_SEPARATOR);
+        printLine(element.getCustomText(), level + 1);
+        boolean plainChildren = plain || element != root;
+        for (CustomElement child : element.getCustomChildren(!plainChildren))
+            write(child, level + 1, plainChildren);
+        indent(level);
+        this.out.write("</");
+        this.out.write(element.getName());
+        this.out.write('>');
+        this.out.write(LINE_SEPARATOR);
+        printLine(element.getTail(), level);
     }
 
     /**
-     * Close an element
+     * Write an attribute in format "key=\"value\" "
      *
-     * @return ">"
+     * @param key   The name of the attribute
+     * @param value The value of the attribute
+     * @throws IOException Thrown when the output cannot be written
      */
-    String close() {
-        return ">";
+    private void attribute(String key, String value) throws IOException {
+        this.out.write(key);
+        this.out.write("=\"");
+        escape(value);
+        this.out.write("\" ");
     }
 
     /**
-     * Close an element after all of its contents and attributes are written
+     * Write the styles as an HTML attribute, in format "style=\"key1:val1; key2:val2; \""
      *
      * @param root The element
-     * @return The closure of an element in format "</tagname>"
+     * @throws IOException Thrown when the output cannot be written
      */
-    String finish(CustomElement root) {
-        return String.format("</%s>", root.getName());
+    private void styles(CustomElement root) throws IOException {
+        if (root.getStyleAttributes().size() <= 0)
+            return;
+        this.out.write("style=\"");
+        for (Map.Entry<String, String> entry : root.getStyleAttributes().entrySet()) {
+            escape(entry.getKey());
+            this.out.write(':');
+            escape(entry.getValue());
+            this.out.write("; ");
+        }
+        this.out.write('"');
     }
 
     /**
-     * Open the file to be written to, using a template importing the js and css
+     * Write the value of an attribute, escaping the characters that have a meaning inside an attribute
      *
-     * @param filename The filename
-     * @throws IOException Is possibly thrown when opening the file
+     * @param s The value
+     * @throws IOException Thrown when the output cannot be written
      */
-    private void openWriter(String filename) throws IOException {
-        Files.copy(new File("src/htmls/template.html").toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
-        FileWriter fw = new FileWriter(filename, true);
-        BufferedWriter bw = new BufferedWriter(fw);
-        this.out = new PrintWriter(bw);
+    private void escape(String s) throws IOException {
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            String entity;
+            switch (s.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                default:
+                    continue;
+            }
+            this.out.write(s, start, i - start);
+            this.out.write(entity);
+            start = i + 1;
+        }
+        this.out.write(s, start, s.length() - start);
     }
 
     /**
-     * Close the output file
+     * Write the indentation of a level
+     *
+     * @param level The level. 4 spaces are written per level
+     * @throws IOException Thrown when the output cannot be written
      */
-    private void closeWriter() {
-        this.out.close();
+    private void indent(int level) throws IOException {
+        while (this.indents.size() <= level) {
+            char[] spaces = new char[this.indents.size() * 4];
+            Arrays.fill(spaces, ' ');
+            this.indents.add(new String(spaces));
+        }
+        this.out.write(this.indents.get(level));
     }
 
     /**
-     * Print a line of text.
+     * Print a line of text, unless it is empty
      *
      * @param s     The text
      * @param level The level of the texts. This is used to prepend 4 spaces per level
+     * @throws IOException Thrown when the output cannot be written
      */
-    private void printLine(String s, Integer level) {
-        if (!s.equals("")) {
-            StringBuilder spaces = new StringBuilder();
-            for (int i = 0; i < level * 4; i++) spaces.append(" ");
-            out.println(spaces + s);
+    private void printLine(String s, int level) throws IOException {
+        if (!s.isEmpty()) {
+            indent(level);
+            this.out.write(s);
+            this.out.write(LINE_SEPARATOR);
         }
     }
 }
@@ -1,203 +1,177 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
- * This class implements get_opcodes() of the SequenceMatcher of Python's difflib library
- * (https://docs.python.org/2/library/difflib.html), excluding the is_junk() method.
- * It is used to find accurate differences in two strings. The input will be the getCustomText() or getTail() functions
- * of CustomElements. The differ will then not just mark a text as "Replaced", "Inserted", or "Deleted", but it
- * will create <ins>'s and <del>'s inside the text
+ * This class finds the opcodes to rewrite a sequence of tokens a into a sequence of tokens b, like get_opcodes() of
+ * the SequenceMatcher of Python's difflib library (https://docs.python.org/2/library/difflib.html). The tokens are
+ * ints, like the characters or the interned words of a text, see TextDiffer.
+ * The opcodes are derived from a longest common subsequence, found with Myers' O(ND) difference algorithm
+ * (http://www.xmailserver.org/diff2.pdf). It takes time proportional to the length of the sequences times the number
+ * of differences D, and doesn't recurse. As the search is given up when D exceeds a maximum cost, very different
+ * sequences are cheap to compare as well.
  */
 class SequenceMatcher {
-    private String a, b;
-
     /**
-     * For each distinct character x in b, charToIndices.get(x) is a list of the indices (into b)
-     * at which x appears, so if b2j.get('a') = [2, 4], b.charAt(2).equals(b.charAt(4) && b.charAt(2).equals('a')
+     * Indicates the type of change of an Opcode. Equal means no change
      */
-    private HashMap<Character, ArrayList<Integer>> charToIndices;
-
-    SequenceMatcher(String a, String b) {
-        this.a = a;
-        this.b = b;
-        saveIndices();
-    }
+    enum Tag {Equal, Delete, Insert, Replace}
 
     /**
-     * For each character in b, save at which indices it occurs
+     * Elements of this type indicate how a part of a should be converted to a part of b
      */
-    private void saveIndices() {
-        this.charToIndices = new HashMap<>();
-        for (int i = 0; i < this.b.length(); i++) {
-            char c = b.charAt(i);
-            ArrayList<Integer> list = charToIndices.getOrDefault(c, new ArrayList<>());
-            list.add(i);
-            this.charToIndices.put(c, list);
+    static class Opcode {
+        private Tag tag;
+        /**
+         * The part of a and the part of b at which this Opcode is applicable
+         */
+        private int aStart, aEnd, bStart, bEnd;
+
+        Opcode(Tag tag, int aStart, int aEnd, int bStart, int bEnd) {
+            this.tag = tag;
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
         }
-    }
 
-    /**
-     * Get the opcodes to rewrite a to b.
-     *
-     * @return The opcodes
-     */
-    ArrayList<Opcode> getOpcodes() {
-        ArrayList<Opcode> result = new ArrayList<>();
-        ArrayList<MatchingBlock> blocks =
-                mergeBlocks(this.getMatchingBlocks(0, this.a.length(), 0, this.b.length()));
-        int lastI = 0;
-        int lastJ = 0;
-        for (MatchingBlock b : blocks) {
-            String tag = "";
-            if (lastI < b.i && lastJ < b.j)
-                tag = "replace";
-            else if (lastI < b.i)
-                tag = "delete";
-            else if (lastJ < b.j)
-                tag = "insert";
-            if (!tag.equals(""))
-                result.add(new Opcode(tag, lastI, b.i, lastJ, b.j));
-            lastI = b.i + b.n;
-            lastJ = b.j + b.n;
-            if (b.n > 0)
-                result.add(new Opcode("equal", b.i, lastI, b.j, lastJ));
+        Tag getTag() {
+            return this.tag;
         }
-        return result;
-    }
 
-    /**
-     * Get all matching blocks in a.substring(alo, ahi) and b.substring(blo, bhi)
-     *
-     * @param alo Start index in a
-     * @param ahi End index in a
-     * @param blo Start index in b
-     * @param bhi End index in b
-     * @return The matching blocks
-     */
-    private ArrayList<MatchingBlock> getMatchingBlocks(int alo, int ahi, int blo, int bhi) {
-        ArrayList<MatchingBlock> result = new ArrayList<>();
-        MatchingBlock longestMatch = findLongestMatch(alo, ahi, blo, bhi);
-        if (longestMatch.n > 0) {
-            if (alo < longestMatch.i && blo < longestMatch.j)
-                result.addAll(getMatchingBlocks(alo, longestMatch.i, blo, longestMatch.j));
-            result.add(longestMatch);
-            if (longestMatch.i + longestMatch.n < ahi && longestMatch.j + longestMatch.n < bhi)
-                result.addAll(getMatchingBlocks(longestMatch.i + longestMatch.n, ahi, longestMatch.j + longestMatch.n, bhi));
+        int getAStart() {
+            return this.aStart;
+        }
+
+        int getAEnd() {
+            return this.aEnd;
+        }
+
+        int getBStart() {
+            return this.bStart;
+        }
+
+        int getBEnd() {
+            return this.bEnd;
         }
-        return result;
+    }
+
+    private int[] a, b;
+
+    SequenceMatcher(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
     }
 
     /**
-     * When the MatchingBlocks are created, merge MatchingBlocks that are next to each other
+     * Get the opcodes to rewrite a to b
      *
-     * @param blocks The blocks
-     * @return The merged blocks
+     * @param maxCost The maximum number of tokens that may be deleted from a and inserted from b together
+     * @return The opcodes, or null if rewriting a to b costs more than maxCost
      */
-    private ArrayList<MatchingBlock> mergeBlocks(ArrayList<MatchingBlock> blocks) {
-        ArrayList<MatchingBlock> result = new ArrayList<>();
-        if (blocks.size() > 0) {
-            MatchingBlock previousBlock = blocks.remove(0);
-            for (MatchingBlock b : blocks) {
-                if (previousBlock.i + previousBlock.n == b.i && previousBlock.j + previousBlock.n == b.j)//These
-                    // blocks are adjacent. so increase the previous block and continue
-                    previousBlock.increaseSizeBy(b.n);
-                else {//Not adjacent. Add previousBlock and continue with b as previousBlock
-                    result.add(previousBlock);
-                    previousBlock = b;
-                }
+    ArrayList<Opcode> getOpcodes(int maxCost) {
+        int[] matches = this.match(maxCost);
+        if (matches == null)
+            return null;
+        ArrayList<Opcode> result = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < this.a.length || j < this.b.length) {
+            //The changed part until the next match
+            int nextI = i, nextJ;
+            while (nextI < this.a.length && matches[nextI] < 0)
+                nextI++;
+            nextJ = nextI < this.a.length ? matches[nextI] : this.b.length;
+            if (i < nextI && j < nextJ)
+                result.add(new Opcode(Tag.Replace, i, nextI, j, nextJ));
+            else if (i < nextI)
+                result.add(new Opcode(Tag.Delete, i, nextI, j, j));
+            else if (j < nextJ)
+                result.add(new Opcode(Tag.Insert, i, i, j, nextJ));
+            //The equal part from the next match on
+            i = nextI;
+            j = nextJ;
+            while (i < this.a.length && matches[i] == j) {
+                i++;
+                j++;
             }
-            result.add(previousBlock);
-            result.add(new MatchingBlock(this.a.length(), this.b.length(), 0));
+            if (nextI < i)
+                result.add(new Opcode(Tag.Equal, nextI, i, nextJ, j));
         }
         return result;
     }
 
-
     /**
-     * Find the longest possible matching block in a.substring(alo, ahi) and a.substring(blo, bhi)
+     * Find a longest common subsequence of a and b with Myers' greedy algorithm. The common prefix and suffix are
+     * matched first. For every number of differences d, the furthest reaching path on each diagonal k = x - y is kept,
+     * such that the path can be traced back from the end once it is reached
      *
-     * @param alo The start of our substring in a
-     * @param ahi The end of our substring in a
-     * @param blo The start of our substring in b
-     * @param bhi The end of our substring in b
-     * @return The longest matching block
+     * @param maxCost The maximum number of differences
+     * @return For each position in a, the position in b it is matched with, or -1. Null if there are more than
+     * maxCost differences
      */
-    private MatchingBlock findLongestMatch(Integer alo, Integer ahi, Integer blo, Integer bhi) {
-        int besti = alo;
-        int bestj = blo;
-        int bestsize = 0;
-        //newBestAtJ contains the length of the longest match ending in a at i - 1 and in b at j
-        HashMap<Integer, Integer> bestAtJ = new HashMap<>();
-        for (int i = alo; i < ahi; i++) {
-            char currentCharInA = a.charAt(i);
-            HashMap<Integer, Integer> newBestAtJ = new HashMap<>();
-            ArrayList<Integer> indicesOfCurrentCharInB = this.charToIndices.getOrDefault(currentCharInA, new ArrayList<>());
-            for (Integer j : indicesOfCurrentCharInB) {
-                //a.get(i).equals(b.get(j))
-                if (j < blo)//This char falls out of our scope
-                    continue;
-                if (j >= bhi)//We've looked at all possible chars in our scope
-                    break;
-                int k = bestAtJ.getOrDefault(j - 1, 0) + 1;//If last char matched, increase longest
-                // match by 1
-                newBestAtJ.put(j, k);
-                if (k > bestsize) {
-                    besti = i - k + 1;
-                    bestj = j - k + 1;
-                    bestsize = k;
+    private int[] match(int maxCost) {
+        int[] result = new int[this.a.length];
+        Arrays.fill(result, -1);
+        int start = 0, endA = this.a.length, endB = this.b.length;
+        while (start < endA && start < endB && this.a[start] == this.b[start]) {
+            result[start] = start;
+            start++;
+        }
+        while (endA > start && endB > start && this.a[endA - 1] == this.b[endB - 1])
+            result[--endA] = --endB;
+        int n = endA - start, m = endB - start;
+        int max = Math.min(maxCost, n + m);
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        //The furthest x on the diagonals -d, -d + 2, ..., d after d differences, for every d
+        int[][] trace = new int[max + 1][];
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1]) ?
+                        v[offset + k + 1] : v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && this.a[start + x] == this.b[start + y]) {
+                    x++;
+                    y++;
                 }
+                v[offset + k] = x;
+            }
+            trace[d] = new int[d + 1];
+            for (int k = -d; k <= d; k += 2)
+                trace[d][(k + d) / 2] = v[offset + k];
+            if (n - m >= -d && n - m <= d && ((n - m + d) & 1) == 0 && v[offset + n - m] >= n) {
+                this.traceBack(trace, d, n, m, start, result);
+                return result;
             }
-            //Update bestAtJ for this i, we don't need the old bestAtJ anymore
-            bestAtJ = newBestAtJ;
-        }
-        return new MatchingBlock(besti, bestj, bestsize);
-    }
-
-    /**
-     * Elements of this type indicate how a part of string a should be converted to a part of string b
-     */
-    class Opcode {
-        /**
-         * Indicates the type of change: replace, delete, insert, or equal (no change)
-         */
-        String tag;
-        /**
-         * Indicate the part in a at which this Opcode is applicable
-         */
-        Integer aStart, aEnd;
-        /**
-         * Indicate the part in b at which this Opcode is applicable
-         */
-        Integer bStart, bEnd;
-
-        Opcode(String t, Integer as, Integer ae, Integer bs, Integer be) {
-            this.tag = t;
-            this.aStart = as;
-            this.aEnd = ae;
-            this.bStart = bs;
-            this.bEnd = be;
         }
+        return null;
     }
 
     /**
-     * Elements of this type indicate a part at which a is equal to b.
+     * Follow the path from the end back to the start, and record the matches on its diagonal parts
      */
-    class MatchingBlock {
-        /**
-         * a.substring(i, i+n).equals(b.substring(j, j+n))
-         */
-        Integer i, j, n;
-
-        MatchingBlock(Integer i, Integer j, Integer n) {
-            this.i = i;
-            this.j = j;
-            this.n = n;
+    private void traceBack(int[][] trace, int differences, int n, int m, int start, int[] result) {
+        int x = n, y = m;
+        for (int d = differences; d > 0; d--) {
+            int k = x - y;
+            int[] previous = trace[d - 1];
+            int previousK = k == -d || (k != d && previous[(k - 1 + d - 1) / 2] < previous[(k + 1 + d - 1) / 2]) ?
+                    k + 1 : k - 1;
+            int previousX = previous[(previousK + d - 1) / 2];
+            int previousY = previousX - previousK;
+            //The diagonal part after the difference, which started with an insertion or a deletion
+            int diagonalX = previousK == k + 1 ? previousX : previousX + 1;
+            while (x > diagonalX) {
+                result[start + x - 1] = start + y - 1;
+                x--;
+                y--;
+            }
+            x = previousX;
+            y = previousY;
         }
-
-        void increaseSizeBy(int extra) {
-            n += extra;
+        while (x > 0 && y > 0) {
+            result[start + x - 1] = start + y - 1;
+            x--;
+            y--;
         }
-
     }
-
 }
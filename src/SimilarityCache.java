@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the similarities of pairs of interned strings, see SimilarityCalculator.sim. The same pairs of
+ * texts, tails and attribute values are compared over and over during the matching, like repeated class names and
+ * boilerplate tails. The cache belongs to a StringPool, so it lives as long as one matching.
+ * The cache is split into stripes, such that the Matcher can use it from several threads. Each stripe evicts its
+ * least recently used pair when it is full.
+ * Similarities are often only calculated up to a minimum. In that case only an upper bound is known, which is
+ * cached as well, as it answers every later lookup with a higher minimum.
+ */
+class SimilarityCache {
+    /**
+     * The default maximum number of pairs in the cache
+     */
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int STRIPES = 16;
+
+    /**
+     * A cached similarity, or an upper bound of it if it is not exact
+     */
+    private static class CachedSimilarity {
+        private float similarity;
+        private boolean exact;
+
+        CachedSimilarity(float similarity, boolean exact) {
+            this.similarity = similarity;
+            this.exact = exact;
+        }
+    }
+
+    /**
+     * A stripe of the cache, which evicts its least recently used pair when it is full
+     */
+    private static class Stripe extends LinkedHashMap<Long, CachedSimilarity> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CachedSimilarity> eldest) {
+            return this.size() > this.capacity;
+        }
+    }
+
+    private List<Stripe> stripes;
+    private LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * @param capacity The maximum number of pairs in the cache
+     */
+    SimilarityCache(int capacity) {
+        int stripeCapacity = Math.max(1, capacity / STRIPES);
+        this.stripes = new ArrayList<>(STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            this.stripes.add(new Stripe(stripeCapacity));
+    }
+
+    /**
+     * The key of a pair. Pairs of class attributes are compared by their class names instead of by their Levenshtein
+     * distance, so they have their own keys
+     */
+    private static long key(int a, int b, boolean classes) {
+        return ((long) a << 32 | (b & 0xFFFFFFFFL)) ^ (classes ? Long.MIN_VALUE : 0);
+    }
+
+    private Stripe stripe(long key) {
+        return this.stripes.get((int) ((key * 0x9E3779B97F4A7C15L) >>> 60));
+    }
+
+    /**
+     * Look up the similarity of two strings
+     *
+     * @param a       The id of the first string
+     * @param b       The id of the second string
+     * @param classes Whether the strings are compared as class attributes
+     * @param minimum The minimum similarity that is of interest
+     * @return The similarity, or an upper bound of it that is lower than minimum, like SimilarityCalculator.sim
+     * returns. NaN if the cache can't answer the lookup
+     */
+    float get(int a, int b, boolean classes, double minimum) {
+        long key = key(a, b, classes);
+        Stripe stripe = this.stripe(key);
+        CachedSimilarity entry;
+        synchronized (stripe) {
+            entry = stripe.get(key);
+        }
+        if (entry != null && (entry.exact || entry.similarity < minimum)) {
+            this.hits.increment();
+            return entry.similarity;
+        }
+        this.misses.increment();
+        return Float.NaN;
+    }
+
+    /**
+     * Add the similarity of two strings
+     *
+     * @param a          The id of the first string
+     * @param b          The id of the second string
+     * @param classes    Whether the strings are compared as class attributes
+     * @param similarity The similarity, or an upper bound of it
+     * @param exact      Whether the similarity is exact
+     */
+    void put(int a, int b, boolean classes, float similarity, boolean exact) {
+        long key = key(a, b, classes);
+        Stripe stripe = this.stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, new CachedSimilarity(similarity, exact));
+        }
+    }
+
+    long getHits() {
+        return this.hits.sum();
+    }
+
+    long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return The number of pairs in the cache
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : this.stripes)
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        return size;
+    }
+}
@@ -1,6 +1,3 @@
-import org.apache.commons.text.similarity.LevenshteinDistance;
-import org.jdom2.Attribute;
-
 import java.util.*;
 
 /**
@@ -24,57 +21,100 @@ class SimilarityCalculator {
      * Define the importance of style values
      */
     private static final double STYLE_WEIGHT = 1;
+    /**
+     * Margin used when a minimum similarity is derived from F, to make sure rounding never excludes a pair that
+     * would pass the threshold when all similarities are calculated exactly
+     */
+    private static final double MARGIN = 1e-6;
 
     /**
      * Calculate similarity of two nodes, expressed as the number of equal children divided by the total number of children
      *
-     * @param left  left node
-     * @param right right node
+     * @param lt       left tree
+     * @param left     left node
+     * @param rt       right tree
+     * @param right    right node
+     * @param matching The partners found so far
      * @return similarity
      */
-    static double childSimilarity(CustomElement left, CustomElement right, HashMap<CustomElement, Partner> l2r) {
-        List<CustomElement> leftChildren = left.getCustomChildren(true);
-        List<CustomElement> rightChildren = new ArrayList<>(right.getCustomChildren(true));
-        if (leftChildren.size() <= 0 && rightChildren.size() <= 0)//If both don't nodes don't have any children,
+    static double childSimilarity(FlatTree lt, int left, FlatTree rt, int right, Matching matching) {
+        int leftCount = lt.getChildCount(left);
+        int rightCount = rt.getChildCount(right);
+        if (leftCount <= 0 && rightCount <= 0)//If both don't nodes don't have any children,
             // we don't take child similarity into account
             return -1;
         int count = 0;
-        int maxChildCount = Math.max(leftChildren.size(), rightChildren.size());
-        for (CustomElement leftChild : leftChildren) {
-            Partner partner = l2r.get(leftChild);
-            CustomElement partnerElement = partner == null ? null : partner.getPartner();
-            if (partnerElement != null) {
-                count += rightChildren.remove(partnerElement) ? 1 : 0;//If the partner of leftChild is found in
-                // rightChildren, increment the count and remove the child in rightChildren
-            }
+        int maxChildCount = Math.max(leftCount, rightCount);
+        for (int leftChild = lt.getFirstChild(left); leftChild >= 0; leftChild = lt.getNextSibling(leftChild)) {
+            int partner = matching.getRightPartner(leftChild);
+            if (partner != Matching.NONE && rt.getParent(partner) == right)//If the partner of leftChild is
+                // a child of right, increment the count. Partners are unique, so no right child is counted twice
+                count++;
         }
         return count / (double) maxChildCount;
     }
 
     /**
      * Calculate similarity of two nodes, expressed as the weighed similarity of the attributes, styles and texts.
+     * The Matcher only uses similarities that are at least F. So while the separate similarities are calculated,
+     * we keep track of the minimum value the next similarity needs for the total to reach F. As soon as a
+     * similarity is known to be lower, we stop and return an upper bound of the similarity, which is lower than F.
      *
-     * @param left  left node
-     * @param right right node
+     * @param lt       left tree
+     * @param left     left node
+     * @param rt       right tree
+     * @param right    right node
+     * @param matching The partners found so far
      * @return similarity
      */
-    static double nodeSimilarity(CustomElement left, CustomElement right, double F, HashMap<CustomElement, Partner> l2r) {
-        if (!couldBeMatched(left, right))
+    static double nodeSimilarity(FlatTree lt, int left, FlatTree rt, int right, double F, Matching matching) {
+        if (!couldBeMatched(lt, left, rt, right))
             return 0.0;
-        //Calculate style similarity
-        float styleSim = attributeSimilarity(left.getStyleAttributes(), right.getStyleAttributes());
-        HashMap<String, String> aAttrs = new HashMap<>();
-        HashMap<String, String> bAttrs = new HashMap<>();
-        for (Attribute a : left.getAttributes())
-            aAttrs.put(a.getName(), a.getValue());
-        for (Attribute b : right.getAttributes())
-            bAttrs.put(b.getName(), b.getValue());
-        //Calculate attribute similarity
-        float attrSim = attributeSimilarity(aAttrs, bAttrs);
-        //Calculate text similarity (inner text and tail)
-        float textSim = sim(left.getCustomText(), right.getCustomText());
-        float tailSim = sim(left.getTail(), right.getTail());
-        return ratiosToSum(attrSim, styleSim, textSim, tailSim, F, left, right, l2r);
+        StringPool pool = lt.getPool();
+        boolean hasAttributes = lt.getAttributeCount(left) > 0 || rt.getAttributeCount(right) > 0;
+        boolean hasStyles = lt.getStyleCount(left) > 0 || rt.getStyleCount(right) > 0;
+        boolean hasText = lt.getText(left) != StringPool.EMPTY || rt.getText(right) != StringPool.EMPTY;
+        boolean hasTail = lt.getTail(left) != StringPool.EMPTY || rt.getTail(right) != StringPool.EMPTY;
+        double max = (hasAttributes ? ATTRIBUTE_WEIGHT : 0) + (hasStyles ? STYLE_WEIGHT : 0) +
+                (hasText ? TEXT_WEIGHT : 0) + (hasTail ? TEXT_WEIGHT : 0);
+        if (max == 0)//If the elements have no identifiers at all
+            return similarityForNonIdentifiableNodes(lt, left, rt, right, matching);
+        double required = F * max - MARGIN;//The weighed sum that is needed to reach F
+        double remaining = max;//The maximum weighed sum of the similarities that are not calculated yet
+        float attrSim = -1, styleSim = -1, textSim = -1, tailSim = -1;
+        double count = 0;
+        if (hasAttributes) {
+            remaining -= ATTRIBUTE_WEIGHT;
+            double minimum = (required - remaining) / ATTRIBUTE_WEIGHT;
+            attrSim = attributeSimilarity(lt, left, rt, right, false, minimum);
+            if (attrSim < minimum)
+                return (attrSim * ATTRIBUTE_WEIGHT + remaining) / max;
+            count += attrSim * ATTRIBUTE_WEIGHT;
+        }
+        if (hasStyles) {
+            remaining -= STYLE_WEIGHT;
+            double minimum = (required - count - remaining) / STYLE_WEIGHT;
+            styleSim = attributeSimilarity(lt, left, rt, right, true, minimum);
+            if (styleSim < minimum)
+                return (count + styleSim * STYLE_WEIGHT + remaining) / max;
+            count += styleSim * STYLE_WEIGHT;
+        }
+        if (hasText) {
+            remaining -= TEXT_WEIGHT;
+            double minimum = (required - count - remaining) / TEXT_WEIGHT;
+            textSim = sim(pool, lt.getText(left), rt.getText(right), minimum);
+            if (textSim < minimum)
+                return (count + textSim * TEXT_WEIGHT + remaining) / max;
+            count += textSim * TEXT_WEIGHT;
+        }
+        if (hasTail) {
+            remaining -= TEXT_WEIGHT;
+            double minimum = (required - count - remaining) / TEXT_WEIGHT;
+            tailSim = sim(pool, lt.getTail(left), rt.getTail(right), minimum);
+            if (tailSim < minimum)
+                return (count + tailSim * TEXT_WEIGHT + remaining) / max;
+        }
+        return ratiosToSum(attrSim, styleSim, textSim, tailSim);
     }
 
     /**
@@ -82,13 +122,19 @@ class SimilarityCalculator {
      * sources are equal
      * Todo: Add extra checks
      *
-     * @param l The left node
-     * @param r The right node
+     * @param lt The left tree
+     * @param l  The left node
+     * @param rt The right tree
+     * @param r  The right node
      * @return Indicator whether they match the requirements
      */
-    static Boolean couldBeMatched(CustomElement l, CustomElement r) {
-        if (l.getName().equals("img") && r.getName().equals("img") && l.getAttributeValue("src") != null &&
-                !l.getAttributeValue("src").equals(r.getAttributeValue("src")))
+    static Boolean couldBeMatched(FlatTree lt, int l, FlatTree rt, int r) {
+        int img = lt.getPool().lookup("img");
+        if (img < 0 || lt.getTag(l) != img || rt.getTag(r) != img)
+            return true;
+        int src = lt.getPool().lookup("src");
+        int leftSrc = src < 0 ? -1 : lt.getAttribute(l, src);
+        if (leftSrc >= 0 && leftSrc != rt.getAttribute(r, src))
             return false;
         return true;
     }
@@ -102,7 +148,7 @@ class SimilarityCalculator {
      * @param textSim  Text similarity (text and tail)
      * @return Weighed similarity
      */
-    static double ratiosToSum(float attrSim, float styleSim, float textSim, float tailSim, double F, CustomElement l, CustomElement r, HashMap<CustomElement, Partner> l2r) {
+    static double ratiosToSum(float attrSim, float styleSim, float textSim, float tailSim) {
         double max = 0;
         double count = 0;
         if (attrSim > -1) {
@@ -121,33 +167,31 @@ class SimilarityCalculator {
             max += TEXT_WEIGHT;
             count += tailSim * TEXT_WEIGHT;
         }
-        if (max == 0) {//If the elements have no identifiers at all
-            return similarityForNonIdentifiableNodes(l, r, l2r);
-        }
         //Weigh the similarities
         double result = count / max;
         return result;
-//        return getSimilarityMultiplier(l, r, l2r) * result;
-//        return Math.min(getSimilarityMultiplier(l, r, l2r) * result, 1.0);
+//        return getSimilarityMultiplier(l, r, matching) * result;
+//        return Math.min(getSimilarityMultiplier(l, r, matching) * result, 1.0);
     }
 
     /**
      * Calculate similarity for NonIdentifiable leafs differently. Leafs are 100% equal when they have no children,
      * the parents match, and their tags match. Else they are unequal
      *
-     * @param l   The left leaf
-     * @param r   The right leaf
-     * @param l2r Map that matches left nodes to right nodes
+     * @param lt       The left tree
+     * @param l        The left leaf
+     * @param rt       The right tree
+     * @param r        The right leaf
+     * @param matching The partners found so far
      * @return The similarity
      */
-    private static double similarityForNonIdentifiableNodes(CustomElement l, CustomElement r, HashMap<CustomElement, Partner> l2r) {
-        if (l.getCustomChildren(false).size() <= 0 &&
-                r.getCustomChildren(false).size() <= 0) {//If they don't have children
-            if (l.getName().equals(r.getName())) {//If the tags are equal
-                Partner lPartner = l2r.get(l.getCustomParentElement());
-                CustomElement lParent = lPartner == null ? null : lPartner.getPartner();
-                if (lParent != null && lParent.equals(r.getCustomParentElement()))//If the parents
-                    // are equal
+    private static double similarityForNonIdentifiableNodes(FlatTree lt, int l, FlatTree rt, int r, Matching matching) {
+        if (lt.getChildCount(l) <= 0 && rt.getChildCount(r) <= 0) {//If they don't have children
+            if (lt.getTag(l) == rt.getTag(r)) {//If the tags are equal
+                int leftParent = lt.getParent(l);
+                int lPartner = leftParent < 0 ? Matching.NONE : matching.getRightPartner(leftParent);
+                if (lPartner != Matching.NONE && rt.getParent(r) >= 0 && lPartner == rt.getParent(r))//If
+                    // the parents are equal
                     return 1.0;
                 else
                     return 0.0;
@@ -161,22 +205,19 @@ class SimilarityCalculator {
      * Define a multiplier which increases the similarity by use of several heuristics
      * Todo: Add more cases for the multiplier
      *
-     * @param l   Left element
-     * @param r   Right element
-     * @param l2r Left to right map
+     * @param l        Left element
+     * @param r        Right element
+     * @param matching The partners found so far
      * @return Calculated multiplier
      */
-    private static Double getSimilarityMultiplier(CustomElement l, CustomElement r, HashMap<CustomElement, Partner> l2r) {
+    private static Double getSimilarityMultiplier(CustomElement l, CustomElement r, Matching matching) {
         double multiplier = 1.0;
         if (l.getName().equals(r.getName()))//Increase similarity by 20% if the tags are equal
             multiplier += 0.2;
         CustomElement lparent = l.getCustomParentElement();
-        Partner lparentpartner = null;
-        if (lparent != null)
-            lparentpartner = l2r.get(lparent);
         CustomElement lparentpartnerelement = null;
-        if (lparentpartner != null)
-            lparentpartnerelement = lparentpartner.getPartner();
+        if (lparent != null)
+            lparentpartnerelement = matching.getRightPartner(lparent);
         if (lparentpartnerelement != null && lparentpartnerelement.equals(r.getCustomParentElement()))//Increase
             // similarity by 20% if the parents of both elements are matched
             multiplier += 0.2;
@@ -192,46 +233,124 @@ class SimilarityCalculator {
      * @return 0 <= similarity <= 1
      */
     static float sim(String a, String b) {
+        return sim(a, b, 0);
+    }
+
+    /**
+     * Calculate the similarity between two strings, if it is at least a minimum value. The Levenshtein distance is
+     * only calculated up to the distance that corresponds with the minimum similarity.
+     *
+     * @param a       first string
+     * @param b       second string
+     * @param minimum The minimum similarity that is of interest
+     * @return The similarity if it is at least minimum, else an upper bound of the similarity that is lower than
+     * minimum
+     */
+    static float sim(String a, String b, double minimum) {
         if (a.equals("") && b.equals(""))
             return -1;
         if (a.equals(b))
             return 1;
         int lenMax = Math.max(a.length(), b.length());
-        double distance = LevenshteinDistance.getDefaultInstance().apply(a, b);
-        return 1 - (((float) distance) / lenMax);
+        //The maximum distance for which the similarity is at least the minimum
+        int limit = (int) Math.max(-1, Math.min(lenMax, Math.floor((1 - Math.max(minimum, 0)) * lenMax)));
+        while (limit < lenMax && 1 - ((float) (limit + 1)) / lenMax >= minimum)
+            limit++;
+        while (limit >= 0 && 1 - ((float) limit) / lenMax < minimum)
+            limit--;
+        int distance = Levenshtein.distance(a, b, limit);
+        if (distance < 0)//The similarity is lower than the minimum
+            return 1 - ((float) (limit + 1)) / lenMax;
+        return 1 - ((float) distance) / lenMax;
     }
 
     /**
-     * Calculate the similarity between two lists of attributes, also works for styles
+     * Calculate the similarity between two interned strings, see sim(String, String, double). The similarity is
+     * looked up in the similarity cache of the pool first
      *
-     * @param l left list
-     * @param r right list
-     * @return similarity
+     * @param pool    The pool in which the strings are interned
+     * @param a       first string id
+     * @param b       second string id
+     * @param minimum The minimum similarity that is of interest
+     * @return The similarity if it is at least minimum, else an upper bound of the similarity that is lower than
+     * minimum
      */
-    private static float attributeSimilarity(HashMap<String, String> l, HashMap<String, String> r) {
-        if (l.size() <= 0 && r.size() <= 0)
+    static float sim(StringPool pool, int a, int b, double minimum) {
+        if (a == b)//Interned strings are equal if their ids are equal
+            return a == StringPool.EMPTY ? -1 : 1;
+        SimilarityCache cache = pool.getSimilarityCache();
+        float similarity = cache.get(a, b, false, minimum);
+        if (Float.isNaN(similarity)) {
+            similarity = sim(pool.get(a), pool.get(b), minimum);
+            cache.put(a, b, false, similarity, similarity >= minimum);//Else it is an upper bound
+        }
+        return similarity;
+    }
+
+    /**
+     * Calculate the similarity between the attributes, or the style attributes, of two nodes, if it is at least a
+     * minimum value. Both lists are sorted by name, so they are merged instead of looked up in a map
+     *
+     * @param lt      left tree
+     * @param l       left node
+     * @param rt      right tree
+     * @param r       right node
+     * @param styles  Indicates whether the style attributes are compared instead of the attributes
+     * @param minimum The minimum similarity that is of interest
+     * @return The similarity if it is at least minimum, else an upper bound of the similarity that is lower than
+     * minimum
+     */
+    private static float attributeSimilarity(FlatTree lt, int l, FlatTree rt, int r, boolean styles, double minimum) {
+        int leftCount = styles ? lt.getStyleCount(l) : lt.getAttributeCount(l);
+        int rightCount = styles ? rt.getStyleCount(r) : rt.getAttributeCount(r);
+        if (leftCount <= 0 && rightCount <= 0)
             return -1;
-        int totalAttributes = Math.max(l.size(), r.size());
+        StringPool pool = lt.getPool();
+        int classId = styles ? -1 : pool.lookup("class");
+        int totalAttributes = Math.max(leftCount, rightCount);
+        double required = minimum * totalAttributes;
+        int remaining = leftCount;//Each attribute of l adds at most 1 to the summed similarity
         float summedSim = (float) 0.0;
-        HashMap<String, String> left = new HashMap<>(l);
-        HashMap<String, String> right = new HashMap<>(r);
-        for (Map.Entry<String, String> entry : left.entrySet()) {
-            if (right.containsKey(entry.getKey())) {
-                switch (entry.getKey()) {
-                    case "class"://Handle class different: determine nr of equal classes
-                        summedSim += classSimilarity(entry.getValue(), right.get(entry.getKey()));
-                        break;
-                    default:
-                        float calculatedSim = sim(entry.getValue(), right.get(entry.getKey()));
-                        summedSim += calculatedSim == -1 ? 1 : calculatedSim;//If both values are empty, count as similar
-                        break;
+        int k = 0;
+        for (int i = 0; i < leftCount; i++) {
+            remaining--;
+            int name = styles ? lt.getStyleName(l, i) : lt.getAttributeName(l, i);
+            while (k < rightCount && (styles ? rt.getStyleName(r, k) : rt.getAttributeName(r, k)) < name)
+                k++;
+            if (k < rightCount && (styles ? rt.getStyleName(r, k) : rt.getAttributeName(r, k)) == name) {
+                int value = styles ? lt.getStyleValue(l, i) : lt.getAttributeValue(l, i);
+                int other = styles ? rt.getStyleValue(r, k) : rt.getAttributeValue(r, k);
+                if (name == classId)//Handle class different: determine nr of equal classes
+                    summedSim += value == other ? 1 : classSimilarity(pool, value, other);
+                else {
+                    float calculatedSim = sim(pool, value, other, required - summedSim - remaining);
+                    summedSim += calculatedSim == -1 ? 1 : calculatedSim;//If both values are empty, count as similar
                 }
-                right.remove(entry.getKey());
             }
+            if (summedSim + remaining < required)//Even if all other attributes are equal, the minimum isn't reached
+                return (summedSim + remaining) / totalAttributes;
         }
         return summedSim / totalAttributes;
     }
 
+    /**
+     * Calculate the similarity between two interned class values, using the similarity cache of the pool
+     *
+     * @param pool The pool in which the values are interned
+     * @param l    left classValue id
+     * @param r    right classValue id
+     * @return ratio of similar classes
+     */
+    private static float classSimilarity(StringPool pool, int l, int r) {
+        SimilarityCache cache = pool.getSimilarityCache();
+        float similarity = cache.get(l, r, true, 0);
+        if (Float.isNaN(similarity)) {
+            similarity = classSimilarity(pool.get(l), pool.get(r));
+            cache.put(l, r, true, similarity, true);
+        }
+        return similarity;
+    }
+
     /**
      * Calculate similarity between classes. It splits the classes by " ", and checks the number of equal classes
      *
@@ -0,0 +1,216 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The manifest of a snapshot. It records for every page its url, the ETag and Last-Modified headers of the response,
+ * the SHA-256 hash of the content and the blob that holds the content. Blobs are named by their hash, so every content
+ * is stored once. A page that didn't change since the previous snapshot refers to the blob of the previous snapshot
+ * instead of storing it again. The paths of the blobs are relative to the snapshot folder.
+ * The manifest is a tab separated file with a header line, see FILENAME
+ */
+class SnapshotManifest {
+    /**
+     * The name of the manifest in a snapshot folder, and of the folder holding the blobs
+     */
+    static final String FILENAME = "snapshot.tsv", BLOBS = "blobs";
+
+    /**
+     * The manifest entry of one page
+     */
+    static class Entry {
+        private String page, url, etag, lastModified, hash, blob;
+
+        /**
+         * @param page         The name of the page
+         * @param url          The url of the page
+         * @param etag         The ETag of the response, or ""
+         * @param lastModified The Last-Modified header of the response, or ""
+         * @param hash         The SHA-256 hash of the content, in hexadecimal
+         * @param blob         The path of the blob holding the content, relative to the snapshot folder
+         */
+        Entry(String page, String url, String etag, String lastModified, String hash, String blob) {
+            this.page = page;
+            this.url = url;
+            this.etag = etag == null ? "" : etag;
+            this.lastModified = lastModified == null ? "" : lastModified;
+            this.hash = hash;
+            this.blob = blob;
+        }
+
+        String getPage() {
+            return this.page;
+        }
+
+        String getUrl() {
+            return this.url;
+        }
+
+        String getEtag() {
+            return this.etag;
+        }
+
+        String getLastModified() {
+            return this.lastModified;
+        }
+
+        String getHash() {
+            return this.hash;
+        }
+
+        String getBlob() {
+            return this.blob;
+        }
+    }
+
+    /**
+     * The snapshot folder
+     */
+    private File folder;
+    private TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Create an empty manifest
+     *
+     * @param folder The snapshot folder
+     */
+    SnapshotManifest(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Read the manifest of a snapshot
+     *
+     * @param folder The snapshot folder
+     * @return The manifest, or null if the snapshot has no manifest, like snapshots that hold one file per page
+     * @throws IOException Thrown when the manifest cannot be read
+     */
+    static SnapshotManifest read(File folder) throws IOException {
+        File file = new File(folder, FILENAME);
+        if (!file.isFile())
+            return null;
+        SnapshotManifest manifest = new SnapshotManifest(folder);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {//Skip the header
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 6)
+                throw new IOException("Malformed line in " + file + ": " + line);
+            manifest.put(new Entry(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]));
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the manifest to the snapshot folder
+     *
+     * @throws IOException Thrown when the manifest cannot be written
+     */
+    void write() throws IOException {
+        try (PrintWriter out = new PrintWriter(new File(this.folder, FILENAME), StandardCharsets.UTF_8.name())) {
+            out.println("page\turl\tetag\tlastModified\tsha256\tblob");
+            for (Entry e : this.entries.values())
+                out.println(String.join("\t", field(e.page), field(e.url), field(e.etag), field(e.lastModified),
+                        e.hash, e.blob));
+        }
+    }
+
+    /**
+     * Tabs and line ends would break the manifest, so they are replaced by spaces
+     */
+    private static String field(String s) {
+        return s.replaceAll("[\t\r\n]", " ");
+    }
+
+    /**
+     * Add or replace the entry of a page. Entries can be added by several threads at the same time
+     *
+     * @param entry The entry
+     */
+    synchronized void put(Entry entry) {
+        this.entries.put(entry.getPage(), entry);
+    }
+
+    /**
+     * @param page The name of a page
+     * @return The entry of the page, or null if the snapshot doesn't hold the page
+     */
+    synchronized Entry get(String page) {
+        return this.entries.get(page);
+    }
+
+    /**
+     * @return The names of all pages, in alphabetical order
+     */
+    synchronized ArrayList<String> getPages() {
+        return new ArrayList<>(this.entries.keySet());
+    }
+
+    /**
+     * @param page The name of a page
+     * @return The blob that holds the content of the page
+     */
+    File getBlob(String page) {
+        return new File(this.folder, this.get(page).getBlob());
+    }
+
+    /**
+     * Store content in a blob of this snapshot, unless the blob exists already
+     *
+     * @param content   The content
+     * @param hash      The hash of the content, see hash
+     * @param extension The extension of the blob, like ".html"
+     * @return The path of the blob, relative to the snapshot folder
+     * @throws IOException Thrown when the blob cannot be written
+     */
+    String storeBlob(byte[] content, String hash, String extension) throws IOException {
+        String blob = BLOBS + "/" + hash + extension;
+        File file = new File(this.folder, blob);
+        if (!file.isFile()) {
+            Files.createDirectories(file.getParentFile().toPath());
+            //Write a temporary file first, such that a blob is never half written
+            File temporary = File.createTempFile(hash, ".tmp", file.getParentFile());
+            try {
+                Files.write(temporary.toPath(), content);
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary.toPath());
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Refer to the blob of an entry of another snapshot from this snapshot
+     *
+     * @param other The manifest of the other snapshot
+     * @param entry The entry in the other snapshot
+     * @return The path of the blob, relative to the folder of this snapshot
+     */
+    String referTo(SnapshotManifest other, Entry entry) {
+        File blob = new File(other.folder, entry.getBlob()).getAbsoluteFile().toPath().normalize().toFile();
+        return this.folder.getAbsoluteFile().toPath().normalize().relativize(blob.toPath()).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Calculate the SHA-256 hash of content
+     *
+     * @param content The content
+     * @return The hash, in hexadecimal
+     */
+    static String hash(byte[] content) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(content))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {//Every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
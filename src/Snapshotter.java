@@ -2,17 +2,27 @@ import com.gargoylesoftware.htmlunit.*;
 import com.gargoylesoftware.htmlunit.html.*;
 import org.w3c.dom.Node;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
+import java.io.*;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Take a snapshot of a website
+ * Take a snapshot of a website. Pages are saved as html, or as binary trees, see TreeSerializer. A binary tree holds
+ * the cleaned page, so diffing it doesn't need to clean and parse the page again.
+ * A snapshot of a website is stored as a SnapshotManifest and content-addressed blobs. When the previous snapshot is
+ * given, every page is requested conditionally, with the ETag and Last-Modified of the previous snapshot. Pages that
+ * are not modified, or that have the same content hash, refer to the blob of the previous snapshot instead of being
+ * stored again.
+ * The pages are fetched by a pool of threads, each with its own WebClient, as WebClients are not thread safe. The
+ * requests to each host are spread out to a maximum rate, and a page that fails with an exception, a 429 or a 5xx
+ * response is fetched again after a backoff that doubles with every attempt. The progress is reported while the
+ * snapshot is made, and the totals are available afterwards with getReport
  */
 public class Snapshotter {
     /**
@@ -42,14 +52,167 @@ public class Snapshotter {
     /**
      * Errors that occur durring snapshotting
      */
-    private HashMap<String, String> errors;
+    private ConcurrentHashMap<String, String> errors;
+    /**
+     * Indicates whether pages are saved as binary trees instead of html
+     */
+    private boolean binary;
+    /**
+     * Folder holding the previous snapshot of the website, or null
+     */
+    private String previousfolder;
+    /**
+     * The manifest of the snapshot that is being made, and of the previous snapshot. Null if pages are saved to
+     * files named after the pages, or if there is no previous snapshot
+     */
+    private SnapshotManifest manifest, previous;
+    /**
+     * The number of pages that are fetched at the same time
+     */
+    private int threads;
+    /**
+     * The minimum time between the starts of two requests to the same host, in milliseconds
+     */
+    private long requestInterval;
+    /**
+     * The number of times a failed page is fetched again
+     */
+    private int retries;
+    /**
+     * The default number of retries, and the backoff before the first retry in milliseconds
+     */
+    static final int RETRIES = 2, BACKOFF_MILLIS = 1000;
+    /**
+     * The progress is reported every time this number of pages is finished
+     */
+    private static final int PROGRESS_INTERVAL = 100;
+    /**
+     * The earliest time at which the next request to each host may start, from System.nanoTime()
+     */
+    private HashMap<String, Long> nextRequest = new HashMap<>();
+    private Report report;
 
-    public Snapshotter(){
+    /**
+     * The totals of the last snapshot
+     */
+    static class Report {
+        private int pages;
+        private AtomicInteger saved = new AtomicInteger(), failed = new AtomicInteger(), retried = new AtomicInteger();
+        /**
+         * The number of saved pages that were not modified since the previous snapshot
+         */
+        private AtomicInteger unchanged = new AtomicInteger();
+        private AtomicLong bytes = new AtomicLong();
+        private long start = System.nanoTime(), millis;
 
-    };
+        Report(int pages) {
+            this.pages = pages;
+        }
+
+        int getPages() {
+            return this.pages;
+        }
+
+        int getSaved() {
+            return this.saved.get();
+        }
+
+        int getFailed() {
+            return this.failed.get();
+        }
+
+        /**
+         * @return The number of retries over all pages
+         */
+        int getRetried() {
+            return this.retried.get();
+        }
+
+        int getUnchanged() {
+            return this.unchanged.get();
+        }
+
+        /**
+         * @return The number of bytes of the fetched pages
+         */
+        long getBytes() {
+            return this.bytes.get();
+        }
+
+        long getMillis() {
+            return this.millis;
+        }
+
+        @Override
+        public String toString() {
+            long millis = this.millis > 0 ? this.millis : (System.nanoTime() - this.start) / 1000000;
+            return String.format("%d/%d pages saved (%d unchanged), %d failed, %d retries, %d kB in %d s (%.1f pages/s)",
+                    this.getSaved(), this.pages, this.getUnchanged(), this.getFailed(), this.getRetried(),
+                    this.getBytes() / 1024,
+                    millis / 1000, (this.getSaved() + this.getFailed()) * 1000.0 / Math.max(1, millis));
+        }
+    }
+
+    /**
+     * A fetched page, with the validators of the response
+     */
+    static class FetchedPage {
+        /**
+         * The html, or null if the page was not modified since the previous snapshot
+         */
+        private String content;
+        private String etag, lastModified;
+
+        FetchedPage(String content, String etag, String lastModified) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public Snapshotter(){
+        this(null);
+    }
 
     public Snapshotter(String outputfolder){
+        this(outputfolder, false);
+    }
+
+    /**
+     * @param outputfolder Folder in which the snapshot is saved
+     * @param binary       Whether pages are saved as binary trees instead of html
+     */
+    public Snapshotter(String outputfolder, boolean binary){
+        this(outputfolder, binary, 1, 0, RETRIES);
+    }
+
+    /**
+     * @param outputfolder      Folder in which the snapshot is saved
+     * @param binary            Whether pages are saved as binary trees instead of html
+     * @param threads           The number of pages that are fetched at the same time
+     * @param requestsPerSecond The maximum number of requests per second to the same host, or 0 for no maximum
+     * @param retries           The number of times a failed page is fetched again
+     */
+    public Snapshotter(String outputfolder, boolean binary, int threads, double requestsPerSecond, int retries){
+        this(outputfolder, null, binary, threads, requestsPerSecond, retries);
+    }
+
+    /**
+     * @param outputfolder      Folder in which the snapshot is saved
+     * @param previousfolder    Folder holding the previous snapshot of the website, or null
+     * @param binary            Whether pages are saved as binary trees instead of html
+     * @param threads           The number of pages that are fetched at the same time
+     * @param requestsPerSecond The maximum number of requests per second to the same host, or 0 for no maximum
+     * @param retries           The number of times a failed page is fetched again
+     */
+    public Snapshotter(String outputfolder, String previousfolder, boolean binary, int threads,
+                       double requestsPerSecond, int retries){
         this.outputfolder = outputfolder;
+        this.previousfolder = previousfolder;
+        this.binary = binary;
+        this.threads = Math.max(1, threads);
+        this.requestInterval = requestsPerSecond > 0 ? (long) (1000 / requestsPerSecond) : 0;
+        this.retries = Math.max(0, retries);
     }
 
     HashMap<String, String> snapshot(String ul, String ud, String username, String password, String k, String outputfolder) throws IOException {
@@ -60,70 +223,235 @@ public class Snapshotter {
         this.k = k;
         this.outputfolder = outputfolder;
         HashMap<String, String> links = getLinks();
-        errors = new HashMap<>();
-        saveFiles(links);
-        return errors;
+        saveFiles(links, true);
+        return new HashMap<>(errors);
+    }
+
+    /**
+     * @return The totals of the last snapshot, or null if no snapshot was made yet
+     */
+    Report getReport() {
+        return this.report;
     }
 
     /**
-     * Save all filename->url mappings
+     * Save all filename->url mappings. The pages are divided over the threads, and each thread fetches its pages
+     * with its own WebClient
      *
-     * @param links The mapping
+     * @param links       The mapping
+     * @param deduplicate Whether the pages are stored as blobs with a manifest, instead of files named after the pages
+     * @throws IOException Thrown when the manifest of the previous snapshot cannot be read, or the manifest cannot
+     *                     be written
      */
-    private void saveFiles(HashMap<String, String> links) {
+    private void saveFiles(HashMap<String, String> links, boolean deduplicate) throws IOException {
+        this.errors = new ConcurrentHashMap<>();
+        this.report = new Report(links.size());
+        this.manifest = deduplicate ? new SnapshotManifest(new File(this.outputfolder)) : null;
+        this.previous = deduplicate && this.previousfolder != null ?
+                SnapshotManifest.read(new File(this.previousfolder)) : null;
+        ConcurrentLinkedQueue<Map.Entry<String, String>> queue = new ConcurrentLinkedQueue<>(links.entrySet());
+        ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+        try {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < this.threads; i++)
+                futures.add(workers.submit(() -> this.saveFiles(queue)));
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } finally {
+            workers.shutdownNow();
+            this.report.millis = Math.max(1, (System.nanoTime() - this.report.start) / 1000000);
+        }
+        if (this.manifest != null)
+            this.manifest.write();
+        System.out.println(this.report);
+    }
+
+    /**
+     * Save the pages of a queue until it is empty. This is executed by every thread
+     *
+     * @param queue The filename->url mappings that are not saved yet
+     */
+    private void saveFiles(ConcurrentLinkedQueue<Map.Entry<String, String>> queue) {
         WebClient webClient = new WebClient();
         webClient.getOptions().setUseInsecureSSL(true);
         webClient.getOptions().setJavaScriptEnabled(true);
         webClient.getOptions().setThrowExceptionOnScriptError(false);
         webClient.getOptions().setThrowExceptionOnFailingStatusCode(false);
-        for (Map.Entry<String, String> entry : links.entrySet()) {
-            String content = getContent(webClient, entry.getKey(), entry.getValue());
-            if (content != null)
-                writeHtml(content, this.outputfolder + entry.getKey()/*.replaceAll("\\W+", "")*/);
+        try {
+            Map.Entry<String, String> entry;
+            while ((entry = queue.poll()) != null && !Thread.currentThread().isInterrupted()) {
+                String name = entry.getKey();
+                SnapshotManifest.Entry previous = this.previous == null ? null : this.previous.get(name);
+                FetchedPage page = getContent(webClient, name, entry.getValue(), previous);
+                boolean saved = page != null;
+                if (page != null && page.content != null)
+                    this.report.bytes.addAndGet(page.content.getBytes(StandardCharsets.UTF_8).length);
+                if (page != null && this.manifest != null)
+                    saved = this.saveBlob(name, entry.getValue(), page, previous);
+                else if (page != null && this.binary)
+                    writeTree(page.content, this.outputfolder + name);
+                else if (page != null)
+                    writeHtml(page.content, this.outputfolder + name/*.replaceAll("\\W+", "")*/);
+                (saved ? this.report.saved : this.report.failed).incrementAndGet();
+                if ((this.report.getSaved() + this.report.getFailed()) % PROGRESS_INTERVAL == 0)
+                    System.out.println(this.report);
+            }
+        } finally {
+            webClient.close();
         }
     }
 
     /**
-     * Get the content of a url
+     * Get the content of a url, and retry with an exponential backoff when it fails with an IOException or with a
+     * response that indicates that the server is busy or failing. The requests to a host are spread out to the
+     * maximum rate. A malformed url fails at once. Errors are saved in this.errors
      *
      * @param webClient The client, used to open the url
      * @param name      The filename where the HTML will be saved
      * @param url       The url
-     * @return The resulting html
+     * @param previous  The entry of the page in the previous snapshot, or null
+     * @return The resulting page, or null if it cannot be fetched
      */
-    String getContent(WebClient webClient, String name, String url) {
-        String content;
-        try {
-            Page p = webClient.getPage(url);
-            if (p.isHtmlPage()) {
-                HtmlPage page = (HtmlPage) p;
-                WebResponse response = page.getWebResponse();
-                if (response.getStatusCode() == 200) {
-                    // Add a <base> element, such that relative image paths are loaded when opening the html file
-                    DomNode head = page.querySelector("head");
-                    if (head == null) {
-                        head = page.createElement("head");
-                        page.appendChild(head);
-                    }
-                    if (head.querySelector("base") == null) {
-                        DomElement base = page.createElement("base");
-                        base.setAttribute("href", new URL(new URL(url), "/").toString());
-                        head.appendChild(base);
-                    }
-                    content = page.asXml();
-                } else {
-                    errors.put(name, "Wrong http response: " + response.getStatusCode());
+    FetchedPage getContent(WebClient webClient, String name, String url, SnapshotManifest.Entry previous) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                this.waitForHost(new URL(url).getHost());
+                return fetchContent(webClient, name, url, previous);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.put(name, "Interrupted");
+                return null;
+            } catch (MalformedURLException e) {//Fetching it again won't help
+                errors.put(name, e.getMessage() == null ? e.toString() : e.getMessage());
+                return null;
+            } catch (IOException e) {
+                if (attempt >= this.retries) {
+                    errors.put(name, e.getMessage() == null ? e.toString() : e.getMessage());
                     return null;
                 }
-            } else {
-                errors.put(name, "No html!");
+            } catch (Exception e) {
+                errors.put(name, e.getMessage() == null ? e.toString() : e.getMessage());
+                return null;
+            }
+            this.report.retried.incrementAndGet();
+            try {
+                Thread.sleep((long) BACKOFF_MILLIS << attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                errors.put(name, "Interrupted");
                 return null;
             }
-        } catch (Exception e) {
-            errors.put(name, e.getMessage());
+        }
+    }
+
+    /**
+     * Wait until the next request to a host may start, and reserve that start for the current thread
+     *
+     * @param host The host
+     * @throws InterruptedException Thrown when the thread is interrupted while waiting
+     */
+    private void waitForHost(String host) throws InterruptedException {
+        if (this.requestInterval <= 0)
+            return;
+        long start;
+        synchronized (this.nextRequest) {
+            start = Math.max(System.nanoTime(), this.nextRequest.getOrDefault(host, Long.MIN_VALUE));
+            this.nextRequest.put(host, start + this.requestInterval * 1000000);
+        }
+        long wait = start - System.nanoTime();
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Get the content of a url once. When the page is in the previous snapshot, the request is conditional
+     *
+     * @param webClient The client, used to open the url
+     * @param name      The filename where the HTML will be saved
+     * @param url       The url
+     * @param previous  The entry of the page in the previous snapshot, or null
+     * @return The resulting page, or null if the page is no html or has another error response
+     * @throws IOException Thrown when the page cannot be fetched, or the server is busy or failing. The page can be
+     *                     fetched again later
+     */
+    private FetchedPage fetchContent(WebClient webClient, String name, String url, SnapshotManifest.Entry previous)
+            throws IOException {
+        WebRequest request = new WebRequest(new URL(url));
+        if (previous != null && !previous.getEtag().equals(""))
+            request.setAdditionalHeader("If-None-Match", previous.getEtag());
+        if (previous != null && !previous.getLastModified().equals(""))
+            request.setAdditionalHeader("If-Modified-Since", previous.getLastModified());
+        Page p = webClient.getPage(request);
+        WebResponse response = p.getWebResponse();
+        int status = response.getStatusCode();
+        if (status == 304 && previous != null)
+            return new FetchedPage(null, previous.getEtag(), previous.getLastModified());
+        if (status == 429 || status >= 500)
+            throw new IOException("Wrong http response: " + status);
+        if (status != 200) {
+            errors.put(name, "Wrong http response: " + status);
+            return null;
+        }
+        if (!p.isHtmlPage()) {
+            errors.put(name, "No html!");
             return null;
         }
-        return content;
+        HtmlPage page = (HtmlPage) p;
+        // Add a <base> element, such that relative image paths are loaded when opening the html file
+        DomNode head = page.querySelector("head");
+        if (head == null) {
+            head = page.createElement("head");
+            page.appendChild(head);
+        }
+        if (head.querySelector("base") == null) {
+            DomElement base = page.createElement("base");
+            base.setAttribute("href", new URL(new URL(url), "/").toString());
+            head.appendChild(base);
+        }
+        return new FetchedPage(page.asXml(), response.getResponseHeaderValue("ETag"),
+                response.getResponseHeaderValue("Last-Modified"));
+    }
+
+    /**
+     * Save a page as a blob, and add it to the manifest. The blob of the previous snapshot is used when the page
+     * didn't change
+     *
+     * @param name     The name of the page
+     * @param url      The url of the page
+     * @param page     The fetched page
+     * @param previous The entry of the page in the previous snapshot, or null
+     * @return Whether the page is saved. If not, the error is saved in this.errors
+     */
+    private boolean saveBlob(String name, String url, FetchedPage page, SnapshotManifest.Entry previous) {
+        try {
+            String hash, blob;
+            if (page.content == null) {//Not modified
+                hash = previous.getHash();
+                blob = this.manifest.referTo(this.previous, previous);
+            } else {
+                byte[] html = page.content.getBytes(StandardCharsets.UTF_8);
+                hash = SnapshotManifest.hash(html);
+                if (previous != null && previous.getHash().equals(hash))
+                    blob = this.manifest.referTo(this.previous, previous);
+                else if (this.binary) {
+                    ByteArrayOutputStream tree = new ByteArrayOutputStream();
+                    TreeSerializer.write(Utils.htmlToTree(page.content), tree);
+                    blob = this.manifest.storeBlob(tree.toByteArray(), hash, ".tree");
+                } else
+                    blob = this.manifest.storeBlob(html, hash, ".html");
+            }
+            if (previous != null && previous.getHash().equals(hash))
+                this.report.unchanged.incrementAndGet();
+            this.manifest.put(new SnapshotManifest.Entry(name, url, page.etag, page.lastModified, hash, blob));
+            return true;
+        } catch (IOException e) {
+            errors.put(name, e.toString());
+            return false;
+        }
     }
 
     /**
@@ -133,20 +461,24 @@ public class Snapshotter {
      * @param filename The filename
      */
     void writeHtml(String html, String filename) {
-        OutputStream os = null;
-        try {
-            File file = new File(filename);
-            file.createNewFile();
-            os = new FileOutputStream(file);
-            os.write(html.getBytes(), 0, html.length());
+        try (OutputStream os = new FileOutputStream(filename)) {
+            os.write(html.getBytes(StandardCharsets.UTF_8));//The encoding in which the Differ reads the file
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Clean html, and save the tree to a file, see TreeSerializer
+     *
+     * @param html     The html
+     * @param filename The filename
+     */
+    void writeTree(String html, String filename) {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(filename))) {
+            TreeSerializer.write(Utils.htmlToTree(html), os);
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                os.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
     }
 
@@ -188,10 +520,22 @@ public class Snapshotter {
         return result;
     }
 
-    void snapShotTwoURLs(String f1, String f2, String u1, String u2){
+    void snapShotTwoURLs(String f1, String f2, String u1, String u2) throws IOException {
         HashMap<String, String> map = new HashMap<>();
         map.put(f1, u1);
         map.put(f2, u2);
-        this.saveFiles(map);
+        this.saveFiles(map, false);
+    }
+
+    /**
+     * Save the pages of a list of urls as a snapshot, without logging in first
+     *
+     * @param links The filename->url mappings
+     * @return The errors, mapped by filename
+     * @throws IOException Thrown when a manifest cannot be read or written
+     */
+    HashMap<String, String> snapshot(HashMap<String, String> links) throws IOException {
+        this.saveFiles(links, true);
+        return new HashMap<>(errors);
     }
 }
@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A pool of interned strings, shared by the FlatTrees of the two documents that are matched. Every distinct string
+ * gets a dense int id, so equal strings in both trees can be compared by their ids. The pool also holds the cache of
+ * the similarities of pairs of its strings.
+ */
+class StringPool {
+    /**
+     * The id of the empty string
+     */
+    static final int EMPTY = 0;
+
+    private HashMap<String, Integer> ids;
+    private ArrayList<String> strings;
+    private SimilarityCache similarityCache;
+
+    StringPool() {
+        this(SimilarityCache.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param similarityCacheCapacity The maximum number of pairs in the similarity cache
+     */
+    StringPool(int similarityCacheCapacity) {
+        this.ids = new HashMap<>();
+        this.strings = new ArrayList<>();
+        this.similarityCache = new SimilarityCache(similarityCacheCapacity);
+        this.id("");
+    }
+
+    /**
+     * Return the id of a string, and add it to the pool if it is new
+     *
+     * @param s The string
+     * @return The id
+     */
+    int id(String s) {
+        Integer id = this.ids.get(s);
+        if (id == null) {
+            id = this.strings.size();
+            this.ids.put(s, id);
+            this.strings.add(s);
+        }
+        return id;
+    }
+
+    /**
+     * Return the id of a string, without adding it to the pool
+     *
+     * @param s The string
+     * @return The id, or -1 if the string is not in the pool
+     */
+    int lookup(String s) {
+        Integer id = this.ids.get(s);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Return the string with a certain id
+     *
+     * @param id The id
+     * @return The string
+     */
+    String get(int id) {
+        return this.strings.get(id);
+    }
+
+    int size() {
+        return this.strings.size();
+    }
+
+    SimilarityCache getSimilarityCache() {
+        return this.similarityCache;
+    }
+}
@@ -1,38 +1,147 @@
-import org.apache.commons.text.similarity.LevenshteinDistance;
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
- * This class is responsible for diffing text and tail attributes of CustomElements. It uses the SequenceMatcher
- * to find the opcodes. It then uses the opcodes to create <ins>'s and <del>'s
+ * This class is responsible for diffing text and tail attributes of CustomElements. The texts are split into tokens,
+ * which are interned to ints, and the SequenceMatcher finds the opcodes to rewrite the tokens of one text into the
+ * other. It then uses the opcodes to create <ins>'s and <del>'s. When the texts differ too much, the whole text is
+ * replaced
  */
 public class TextDiffer {
+    /**
+     * The size of the tokens that are compared: single characters, words or sentences. Words are sequences of letters
+     * and digits. Sentences end with a '.', '!' or '?' that is followed by whitespace. Whitespace sequences are tokens
+     * on their own, and so are other characters when comparing words
+     */
+    enum Granularity {Char, Word, Sentence}
+
+    /**
+     * The default maximum number of tokens that may be deleted and inserted together
+     */
+    static final int MAX_EDIT_COST = 1000;
+
+    private Granularity granularity;
+    private int maxEditCost;
+
+    public TextDiffer() {
+        this(Granularity.Char, MAX_EDIT_COST);
+    }
+
+    /**
+     * @param granularity The size of the tokens that are compared
+     * @param maxEditCost The maximum number of tokens that may be deleted and inserted together. When more tokens
+     *                    differ, or more than half of the tokens of both texts, the whole text is replaced
+     */
+    TextDiffer(Granularity granularity, int maxEditCost) {
+        this.granularity = granularity;
+        this.maxEditCost = maxEditCost;
+    }
 
     public String diff(String a, String b) {
-        if (SimilarityCalculator.sim(a, b) < 0.5)
+        HashMap<String, Integer> ids = new HashMap<>();
+        int[] aStarts = this.tokenize(a), bStarts = this.tokenize(b);
+        int[] aTokens = this.intern(a, aStarts, ids), bTokens = this.intern(b, bStarts, ids);
+        //Rewriting more than half of the tokens is not a meaningful diff anymore
+        int maxCost = Math.min(this.maxEditCost, (aTokens.length + bTokens.length) / 2);
+        ArrayList<SequenceMatcher.Opcode> opcodes = new SequenceMatcher(aTokens, bTokens).getOpcodes(maxCost);
+        if (opcodes == null)
             return String.format("<del>%s</del><ins>%s</ins>", a, b);
         StringBuilder result = new StringBuilder();
-        ArrayList<SequenceMatcher.Opcode> opcodes = (new SequenceMatcher(a, b)).getOpcodes();
         for (SequenceMatcher.Opcode code : opcodes) {
-            switch (code.tag) {
-                case "equal":
-                    result.append(a, code.aStart, code.aEnd);
+            int aStart = aStarts[code.getAStart()], aEnd = aStarts[code.getAEnd()];
+            int bStart = bStarts[code.getBStart()], bEnd = bStarts[code.getBEnd()];
+            switch (code.getTag()) {
+                case Equal:
+                    result.append(a, aStart, aEnd);
                     break;
-                case "delete":
-                    result.append(write_delete(a.substring(code.aStart, code.aEnd)));
+                case Delete:
+                    result.append(write_delete(a.substring(aStart, aEnd)));
                     break;
-                case "insert":
-                    result.append(write_insert(b.substring(code.bStart, code.bEnd)));
+                case Insert:
+                    result.append(write_insert(b.substring(bStart, bEnd)));
                     break;
-                case "replace":
-                    result.append(write_delete(a.substring(code.aStart, code.aEnd)));
-                    result.append(write_insert(b.substring(code.bStart, code.bEnd)));
+                case Replace:
+                    result.append(write_delete(a.substring(aStart, aEnd)));
+                    result.append(write_insert(b.substring(bStart, bEnd)));
                     break;
             }
         }
         return result.toString();
     }
 
+    /**
+     * Split a text into tokens
+     *
+     * @param s The text
+     * @return The start of every token, followed by the length of the text
+     */
+    private int[] tokenize(String s) {
+        if (this.granularity == Granularity.Char) {
+            int[] starts = new int[s.length() + 1];
+            for (int i = 0; i <= s.length(); i++)
+                starts[i] = i;
+            return starts;
+        }
+        int[] starts = new int[s.length() + 1];
+        int count = 0;
+        for (int i = 0; i < s.length(); ) {
+            starts[count++] = i;
+            int type = charType(s.charAt(i++));
+            if (type == 2 || (type == 1 && this.granularity == Granularity.Word))
+                while (i < s.length() && charType(s.charAt(i)) == type)
+                    i++;
+            else if (this.granularity == Granularity.Sentence)
+                while (i < s.length() && !isSentenceEnd(s, i - 1))
+                    i++;
+        }
+        starts[count] = s.length();
+        return Arrays.copyOf(starts, count + 1);
+    }
+
+    /**
+     * @return 1 for letters and digits, 2 for whitespace and 0 for other characters, which are tokens on their own
+     */
+    private static int charType(char c) {
+        if (Character.isLetterOrDigit(c))
+            return 1;
+        return Character.isWhitespace(c) ? 2 : 0;
+    }
+
+    /**
+     * @return Whether the character at position i ends a sentence
+     */
+    private static boolean isSentenceEnd(String s, int i) {
+        char c = s.charAt(i);
+        return (c == '.' || c == '!' || c == '?') && i + 1 < s.length() && charType(s.charAt(i + 1)) == 2;
+    }
+
+    /**
+     * Replace every token by an int. Equal tokens in both texts get the same int
+     *
+     * @param s      The text
+     * @param starts The start of every token, followed by the length of the text
+     * @param ids    The ints of the tokens so far
+     * @return The tokens
+     */
+    private int[] intern(String s, int[] starts, HashMap<String, Integer> ids) {
+        int[] tokens = new int[starts.length - 1];
+        for (int i = 0; i < tokens.length; i++) {
+            if (this.granularity == Granularity.Char)
+                tokens[i] = s.charAt(i);
+            else {
+                String token = s.substring(starts[i], starts[i + 1]);
+                Integer id = ids.get(token);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(token, id);
+                }
+                tokens[i] = id;
+            }
+        }
+        return tokens;
+    }
+
     private String write_delete(String s) {
         return String.format("<del>%s</del>", s);
     }
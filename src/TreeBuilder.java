@@ -0,0 +1,362 @@
+import org.htmlcleaner.*;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+import org.jdom2.Verifier;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a tree of CustomElements directly from the tree of TagNodes created by HTMLCleaner, in a single pass.
+ * It creates exactly the tree that was created by serializing the TagNodes with a CompactXmlSerializer, parsing the
+ * result with a SAXBuilder and copying the Document to CustomElements, but it reads the attributes and texts of the
+ * TagNodes directly, and applies the rules of the serializer and the parser to them in code: the entities and
+ * character references that the serializer recognizes with the default CleanerProperties are replaced, and the line
+ * ends are normalized like the parser does. The content of a script or style is wrapped in a commented CDATA section,
+ * like the serializer does, so it keeps the commented markers of that section.
+ * The texts are handled like in the copy of a Document: all text directly after a child element is the tail of that
+ * child, all other text is added to the text of the parent. Comments are dropped, but they do separate texts. The
+ * text of an element is collected in one buffer while its whitespace is normalized, so building the tree takes linear
+ * time, also for elements with very many children.
+ * Unpaired surrogates, which a JDOM Text or Attribute doesn't accept, are replaced by '?', like encoding the
+ * serialized string to UTF-8 for the SAXBuilder did. Other characters that XML doesn't allow, like control characters,
+ * are replaced by '?' as well. Numeric character references that are malformed, out of range or refer to such a
+ * character are kept as literal text.
+ */
+class TreeBuilder {
+    private static final String XMLNS = "xmlns";
+    /**
+     * The numeric character references that HtmlCleaner recognizes after "&#". The code may have leading zeros, and
+     * a semicolon is optional
+     */
+    private static final Pattern HEXADECIMAL_REFERENCE = Pattern.compile("^0*([x|X][\\p{XDigit}]+)(;?)");
+    private static final Pattern DECIMAL_REFERENCE = Pattern.compile("^([\\p{Digit}]+)(;?)");
+    /**
+     * The longest numeric character reference, and the longest named entity, that HtmlCleaner looks for
+     */
+    private static final int MAX_REFERENCE_LENGTH = 15, MAX_ENTITY_LENGTH = 10;
+
+    private CleanerProperties properties;
+
+    /**
+     * The state of the content of the element that is being built
+     */
+    private static class Content {
+        private CustomElement parent;
+        /**
+         * The text of the parent so far, with normalized whitespace
+         */
+        private StringBuilder parentText = new StringBuilder();
+        /**
+         * The text since the last element or comment
+         */
+        private StringBuilder text = new StringBuilder();
+        /**
+         * The last child element, as long as nothing but text followed it
+         */
+        private CustomElement last;
+
+        Content(CustomElement parent) {
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * @param properties The properties of the HtmlCleaner that created the TagNodes
+     */
+    TreeBuilder(CleanerProperties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Build the tree of CustomElements
+     *
+     * @param root The root TagNode, as returned by HtmlCleaner.clean
+     * @return The root of the tree
+     */
+    CustomElement build(TagNode root) {
+        return this.buildElement(root, new HashMap<>());
+    }
+
+    /**
+     * Build the CustomElement of a TagNode, including its subtree
+     *
+     * @param node       The TagNode
+     * @param namespaces The namespaces in scope, mapped by their prefix
+     * @return The CustomElement
+     */
+    private CustomElement buildElement(TagNode node, HashMap<String, String> namespaces) {
+        //Namespace declarations are no attributes
+        LinkedHashMap<String, String> attributes = new LinkedHashMap<>();
+        String style = null;
+        HashMap<String, String> scope = namespaces;
+        for (Map.Entry<String, String> attribute : node.getAttributes().entrySet()) {
+            String name = this.attributeName(attribute.getKey());
+            if (name == null)
+                continue;
+            StringBuilder sb = new StringBuilder(attribute.getValue().length());
+            unescape(attribute.getValue(), sb);
+            normalize(sb, true);
+            String value = sb.toString();
+            if (name.equals(XMLNS) || name.startsWith(XMLNS + ":")) {
+                if (scope == namespaces)
+                    scope = new HashMap<>(namespaces);
+                scope.put(name.equals(XMLNS) ? "" : name.substring(XMLNS.length() + 1), value);
+                continue;
+            }
+            if (name.equals("style"))
+                style = value;
+            attributes.put(name.substring(name.indexOf(':') + 1), value);
+        }
+        //Resolve the namespace of the element
+        String name = node.getName();
+        String prefix = name.indexOf(':') >= 0 ? name.substring(0, name.indexOf(':')) : "";
+        String uri = scope.get(prefix);
+        Namespace namespace = uri == null || uri.equals("") ? Namespace.NO_NAMESPACE : Namespace.getNamespace(prefix, uri);
+        CustomElement element = new CustomElement(name.substring(name.indexOf(':') + 1), namespace, attributes, style);
+        if (this.isMinimized(node))
+            return element;
+        Content content = new Content(element);
+        if (this.properties.isUseCdataFor(name))
+            this.addScript(node, content);
+        else
+            this.addChildren(node.getAllChildren(), content, scope);
+        flush(content);
+        if (content.parentText.length() > 0)
+            element.setCustomText(new Text(content.parentText.toString()));
+        return element;
+    }
+
+    /**
+     * Return the name under which the serializer writes an attribute. Invalid names are sanitized, unless they are
+     * allowed, and namespace declarations are dropped when the cleaner isn't aware of namespaces
+     *
+     * @param name The name of the attribute in the TagNode
+     * @return The name, or null if the attribute is dropped
+     */
+    private String attributeName(String name) {
+        if (!this.properties.isAllowInvalidAttributeNames())
+            name = org.htmlcleaner.Utils.sanitizeXmlAttributeName(name, this.properties.getInvalidXmlAttributeNamePrefix());
+        if (name == null || !(org.htmlcleaner.Utils.isValidXmlIdentifier(name) || this.properties.isAllowInvalidAttributeNames()))
+            return null;
+        if (!this.properties.isNamespacesAware() && (name.equals(XMLNS) || name.startsWith(XMLNS + ":")))
+            return null;
+        return name;
+    }
+
+    /**
+     * @return Whether the serializer writes a TagNode as an empty element, without any content
+     */
+    private boolean isMinimized(TagNode node) {
+        TagInfo info = this.properties.getTagInfoProvider().getTagInfo(node.getName());
+        return node.isEmpty() && (info == null || info.isMinimizedTagPermitted()) &&
+                (this.properties.isUseEmptyElementTags() || info != null && info.isEmptyTag());
+    }
+
+    /**
+     * Add the children of a TagNode to the content of an element. The children of forbidden tags are added to the
+     * same element
+     *
+     * @param children   The children
+     * @param content    The content
+     * @param namespaces The namespaces in scope
+     */
+    private void addChildren(List<? extends BaseToken> children, Content content, HashMap<String, String> namespaces) {
+        for (int i = 0; i < children.size(); i++) {
+            BaseToken child = children.get(i);
+            if (child instanceof ContentNode) {//Also a CData, outside a script or style
+                unescape(((ContentNode) child).getContent().trim(), content.text);
+                //The serializer separates a text from what follows, unless that is only whitespace
+                if (i + 1 < children.size() && !isWhitespaceString(children.get(i + 1)))
+                    content.text.append('\n');
+            } else if (child instanceof CommentNode) {
+                flush(content);
+                content.last = null;
+            } else if (child instanceof TagNode) {
+                TagNode tag = (TagNode) child;
+                if (tag.getName() == null) {//A forbidden tag
+                    this.addChildren(tag.getAllChildren(), content, namespaces);
+                    continue;
+                }
+                if (this.properties.isAddNewlineToHeadAndBody() && isHeadOrBody(tag.getName()))
+                    content.text.append('\n');
+                flush(content);
+                CustomElement element = this.buildElement(tag, namespaces);
+                content.parent.addContent(element);
+                content.last = element;
+            }
+            //Other tokens, like the tokens of end tags, have no content
+        }
+    }
+
+    /**
+     * Add the content of a script or style to the content of an element. The serializer doesn't escape it, but wraps
+     * it in a CDATA section, of which the markers are commented out for the browser, unless the content starts or ends
+     * with such a marker already. The parser then reads the CDATA section, and the comment markers around it as text
+     *
+     * @param node    The script or style
+     * @param content The content
+     */
+    private void addScript(TagNode node, Content content) {
+        String text = node.getText().toString();
+        StringBuilder cdata = new StringBuilder("*/");
+        boolean opened = text.startsWith(CData.SAFE_BEGIN_CDATA);
+        if (!opened && !text.equals("") && text.charAt(0) != '\n' && text.charAt(0) != '\r')
+            cdata.append('\n');
+        appendScript(node.getAllChildren(), cdata);
+        if (opened && cdata.indexOf(CData.SAFE_BEGIN_CDATA, 2) == 2)
+            cdata.delete(2, 2 + CData.SAFE_BEGIN_CDATA.length());
+        boolean closed = text.trim().endsWith(CData.SAFE_END_CDATA);
+        if (!closed) {
+            if (!text.equals("") && text.charAt(text.length() - 1) != '\n' && text.charAt(text.length() - 1) != '\r')
+                cdata.append('\n');
+            cdata.append("/*");
+        }
+        normalize(cdata, false);
+        Utils.appendNormalizedWhitespace(content.parentText, "/*", false);
+        Utils.appendNormalizedWhitespace(content.parentText, cdata, true);
+        if (!closed)
+            content.text.append("*/");
+    }
+
+    /**
+     * Append the content of a script or style as the serializer writes it: texts and comments as they are, without
+     * escaping. The end of a CDATA section in a text is escaped, as it would end the CDATA section around the script
+     *
+     * @param children The children of the script or style
+     * @param sb       The content so far
+     */
+    private static void appendScript(List<? extends BaseToken> children, StringBuilder sb) {
+        for (int i = 0; i < children.size(); i++) {
+            BaseToken child = children.get(i);
+            if (child instanceof ContentNode) {
+                sb.append(((ContentNode) child).getContent().trim().replace("]]>", "]]&gt;"));
+                if (i + 1 < children.size() && !isWhitespaceString(children.get(i + 1)))
+                    sb.append('\n');
+            } else if (child instanceof CommentNode)
+                sb.append(((CommentNode) child).getCommentedContent().trim());
+            else if (child instanceof TagNode)
+                appendScript(((TagNode) child).getAllChildren(), sb);
+        }
+    }
+
+    /**
+     * Add the text that was collected since the last element or comment. Directly after an element it is the tail of
+     * that element, otherwise it is added to the text of the parent
+     *
+     * @param content The content
+     */
+    private static void flush(Content content) {
+        if (content.text.length() <= 0)
+            return;
+        normalize(content.text, false);
+        if (content.last != null)
+            content.last.setTail(new Text(content.text.toString()));
+        else
+            Utils.appendNormalizedWhitespace(content.parentText, content.text, false);
+        content.text.setLength(0);
+        content.last = null;
+    }
+
+    /**
+     * Same as CompactXmlSerializer.isWhitespaceString
+     */
+    private static boolean isWhitespaceString(Object object) {
+        return object != null && object.toString() != null && object.toString().trim().equals("");
+    }
+
+    private static boolean isHeadOrBody(String name) {
+        return name.equalsIgnoreCase("head") || name.equalsIgnoreCase("body");
+    }
+
+    /**
+     * Replace the entities and character references in a text or attribute value like the serializer escapes them,
+     * and the parser reads them back. A named entity is replaced when it is known to HtmlCleaner; it may miss its
+     * semicolon at the end of the text. A character reference with the code 0 becomes '&', and "&#" without a code
+     * becomes '&' as well, while the character after it is dropped. Other '&' are kept
+     *
+     * @param s  The text, as held by HtmlCleaner
+     * @param sb The StringBuilder to append the result to
+     */
+    private static void unescape(String s, StringBuilder sb) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c != '&')
+                sb.append(c);
+            else if (i + 1 < length && s.charAt(i + 1) == '#')
+                i = appendCharacterReference(s, i + 2, sb);
+            else {
+                SpecialEntity entity = SpecialEntities.INSTANCE.getSpecialEntity(
+                        s.substring(i, i + Math.min(MAX_ENTITY_LENGTH, length - i)));
+                if (entity != null) {
+                    sb.append((char) entity.intValue());
+                    i += entity.getKey().length() + 1;
+                } else
+                    sb.append('&');
+            }
+        }
+    }
+
+    /**
+     * Append the character of a numeric character reference. A reference that cannot be parsed, of which the code is
+     * out of range, or that refers to a character that XML doesn't allow, is kept as literal text. A reference to a
+     * surrogate is appended, and replaced by normalize
+     *
+     * @param s    The text
+     * @param from The start of the code, after "&#"
+     * @param sb   The StringBuilder to append the character to
+     * @return The index of the last character of the reference
+     */
+    private static int appendCharacterReference(String s, int from, StringBuilder sb) {
+        CharSequence reference = s.subSequence(from, Math.min(s.length(), from + MAX_REFERENCE_LENGTH));
+        Matcher matcher = HEXADECIMAL_REFERENCE.matcher(reference);
+        if (!matcher.find() && !(matcher = DECIMAL_REFERENCE.matcher(reference)).find()) {
+            sb.append('&');
+            return from;
+        }
+        String code = matcher.group(1);
+        int codePoint;
+        try {
+            codePoint = code.startsWith("x") ? Integer.parseInt(code.substring(1), 16) : Integer.parseInt(code);
+        } catch (NumberFormatException e) {
+            codePoint = -1;
+        }
+        if (codePoint == 0)
+            sb.append('&');
+        else if (codePoint > 0 && (Verifier.isXMLCharacter(codePoint) ||
+                codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE))
+            sb.appendCodePoint(codePoint);
+        else
+            sb.append("&#").append(code).append(';');
+        return from + matcher.end() - 1;
+    }
+
+    /**
+     * Normalize the line ends of a text like an XML parser does. In attribute values all whitespace characters become
+     * spaces. Unpaired surrogates, and other characters that XML doesn't allow, become '?'
+     *
+     * @param sb        The text, which is normalized in place
+     * @param attribute Whether the text is an attribute value
+     */
+    private static void normalize(StringBuilder sb, boolean attribute) {
+        int length = 0;
+        for (int i = 0; i < sb.length(); i++) {
+            char c = sb.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < sb.length() && sb.charAt(i + 1) == '\n')
+                    i++;
+                c = attribute ? ' ' : '\n';
+            } else if (attribute && (c == '\n' || c == '\t'))
+                c = ' ';
+            else if (Character.isHighSurrogate(c) && i + 1 < sb.length() && Character.isLowSurrogate(sb.charAt(i + 1))) {
+                sb.setCharAt(length++, c);
+                c = sb.charAt(++i);
+            } else if (Character.isSurrogate(c) || !Verifier.isXMLCharacter(c))
+                c = '?';
+            sb.setCharAt(length++, c);
+        }
+        sb.setLength(length);
+    }
+}
@@ -44,16 +44,15 @@ class TreeEditor {
      */
     void moveNode(EditAction action) {
         if (action.getNewParent().equals(action.getTarget().getCustomParentElement()))
-            action.getTarget().addPopupText(action, String.format("Moved from %s(%d) to %s(%d)", action.getTarget().getCustomParentElement().getName(), action.getTarget().getCustomParentElement().getCustomChildren(false).indexOf(action.getTarget()), action.getNewParent().getName(), action.getPosition()));
+            action.getTarget().addPopupText(action, String.format("Moved from %s(%d) to %s(%d)", action.getTarget().getCustomParentElement().getName(), action.getTarget().getIndexInParent(), action.getNewParent().getName(), action.getPosition()));
         else
             action.getTarget().addPopupText(action, "Moved to a new parent");
-        //We clone the target, and mark that clone as deleted. It won't be considered in the algorithm anymore,
-        // but the output file will show the cloned node as being moved to another position. So this node will be shown
-        // in  its old and in its new position.
-        CustomElement oldNode = action.getTarget().clone();
-        oldNode.delete();
+        //We leave a ghost of the target at its old position, which is deleted. It won't be considered in the algorithm
+        // anymore, but the output file will show the target at the position of the ghost as being moved to another
+        // position. So this node will be shown in its old and in its new position.
+        CustomElement oldNode = action.getTarget().ghost();
         oldNode.addPopupText(action, "This node is moved");
-        action.getTarget().getCustomParentElement().addContent(action.getTarget().getCustomParentElement().getCustomChildren(false).indexOf(action.getTarget()), oldNode);
+        action.getTarget().getCustomParentElement().addContent(action.getTarget().getIndexInParent(), oldNode);
 
         action.getTarget().getCustomParentElement().removeContent(action.getTarget());
         action.getNewParent().addContent(action.getPosition(), action.getTarget());
@@ -0,0 +1,197 @@
+import org.jdom2.Attribute;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes a tree of CustomElements in a compact binary format, and reads it back, such that a stored tree doesn't
+ * have to be cleaned and parsed again. All strings (tags, namespaces, attribute names and values, style names and
+ * values, texts and tails) are stored once in a string table, and the nodes refer to them by their index. The nodes
+ * are stored in pre order, each with its number of children and its subtree hash. All numbers except the hashes are
+ * varints: 7 bits per byte, with the highest bit set on every byte but the last.
+ * The trees are stored as they are created by the TreeBuilder, so EditActions and deleted nodes are not stored.
+ * Stored files are read through a memory mapping, so they are not copied into the heap before the tree is built.
+ */
+class TreeSerializer {
+    /**
+     * The first bytes of every stored tree: "HDTR", followed by the version of the format
+     */
+    private static final int MAGIC = 0x48445452, VERSION = 1;
+
+    /**
+     * Write a tree
+     *
+     * @param root The root of the tree
+     * @param out  The stream to write to. It is not closed
+     * @throws IOException Thrown when the stream cannot be written
+     */
+    static void write(CustomElement root, OutputStream out) throws IOException {
+        LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+        ByteArrayOutputStream nodes = new ByteArrayOutputStream();
+        writeNode(root, nodes, strings);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        for (int shift = 24; shift >= 0; shift -= 8)
+            header.write(MAGIC >>> shift);
+        writeVarint(header, VERSION);
+        writeVarint(header, strings.size());
+        for (String s : strings.keySet()) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(header, bytes.length);
+            header.write(bytes);
+        }
+        header.writeTo(out);
+        nodes.writeTo(out);
+    }
+
+    /**
+     * Write a node and its subtree in pre order
+     *
+     * @param node    The node
+     * @param out     The stream to write to
+     * @param strings The string table so far, mapping each string to its index
+     */
+    private static void writeNode(CustomElement node, ByteArrayOutputStream out, LinkedHashMap<String, Integer> strings) {
+        writeString(out, node.getName(), strings);
+        writeString(out, node.getNamespacePrefix(), strings);
+        writeString(out, node.getNamespaceURI(), strings);
+        writeVarint(out, node.getAttributes().size());
+        for (Attribute a : node.getAttributes()) {
+            writeString(out, a.getName(), strings);
+            writeString(out, a.getValue(), strings);
+        }
+        writeVarint(out, node.getStyleAttributes().size());
+        for (Map.Entry<String, String> style : node.getStyleAttributes().entrySet()) {
+            writeString(out, style.getKey(), strings);
+            writeString(out, style.getValue(), strings);
+        }
+        writeString(out, node.getCustomText(), strings);
+        writeString(out, node.getTail(), strings);
+        long hash = node.getSubtreeHash();
+        for (int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (hash >>> shift));
+        List<CustomElement> children = node.getCustomChildren(false);
+        writeVarint(out, children.size());
+        for (CustomElement child : children)
+            writeNode(child, out, strings);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s, LinkedHashMap<String, Integer> strings) {
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = strings.size();
+            strings.put(s, index);
+        }
+        writeVarint(out, index);
+    }
+
+    private static void writeVarint(OutputStream out, int value) {
+        try {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        } catch (IOException e) {//ByteArrayOutputStreams don't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Check whether a file holds a stored tree, by its first bytes
+     *
+     * @param file The file
+     * @return The result
+     * @throws IOException Thrown when the file cannot be read
+     */
+    static boolean isStoredTree(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read a tree from a file, which is mapped into memory
+     *
+     * @param file The file
+     * @return The root of the tree
+     * @throws IOException Thrown when the file cannot be read, or doesn't hold a stored tree
+     */
+    static CustomElement read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Read a tree that was written by write. The subtree hashes are read as well, so they are not calculated again
+     *
+     * @param in The bytes of the tree, from the current position of the buffer on
+     * @return The root of the tree
+     * @throws IOException Thrown when the bytes are not a stored tree, or the format has another version
+     */
+    static CustomElement read(ByteBuffer in) throws IOException {
+        try {
+            if (in.getInt() != MAGIC)
+                throw new IOException("Not a stored tree");
+            int version = readVarint(in);
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + " of the tree format");
+            String[] strings = new String[readVarint(in)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readVarint(in)];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return readNode(in, strings);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("The stored tree is corrupt", e);
+        }
+    }
+
+    /**
+     * Read a node and its subtree
+     *
+     * @param in      The bytes
+     * @param strings The string table
+     * @return The node
+     */
+    private static CustomElement readNode(ByteBuffer in, String[] strings) {
+        String name = strings[readVarint(in)];
+        String prefix = strings[readVarint(in)], uri = strings[readVarint(in)];
+        Namespace namespace = uri.equals("") ? Namespace.NO_NAMESPACE : Namespace.getNamespace(prefix, uri);
+        LinkedHashMap<String, String> attributes = new LinkedHashMap<>();
+        for (int i = readVarint(in); i > 0; i--)
+            attributes.put(strings[readVarint(in)], strings[readVarint(in)]);
+        CustomElement node = new CustomElement(name, namespace, attributes, null);
+        for (int i = readVarint(in); i > 0; i--)
+            node.setStyleAttribute(strings[readVarint(in)], strings[readVarint(in)]);
+        String text = strings[readVarint(in)], tail = strings[readVarint(in)];
+        if (!text.equals(""))
+            node.setCustomText(new Text(text));
+        if (!tail.equals(""))
+            node.setTail(new Text(tail));
+        node.setSubtreeHash(in.getLong());
+        for (int i = readVarint(in); i > 0; i--)
+            node.addContent(readNode(in, strings));
+        return node;
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+}
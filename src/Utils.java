@@ -1,20 +1,20 @@
-import org.htmlcleaner.CompactXmlSerializer;
 import org.htmlcleaner.HtmlCleaner;
 import org.htmlcleaner.TagNode;
-import org.jdom2.*;
-import org.jdom2.input.SAXBuilder;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.*;
-import java.util.function.BiFunction;
 
 /**
  * A static class, containing helper methods
  */
 final class Utils {
+    /**
+     * Constants of the 64 bit FNV-1a hash (http://www.isthe.com/chongo/tech/comp/fnv/)
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
 
     /**
      * Traverse a tree breadth first
@@ -23,13 +23,23 @@ final class Utils {
      * @return The list of elements, in the desired order
      */
     static ArrayList<CustomElement> breadthFirstSearch(CustomElement root) {
-        ArrayList<CustomElement> queue = new ArrayList<>(), result = new ArrayList<>();
-        queue.add(root);
-        while (queue.size() > 0) {
-            CustomElement item = queue.remove(0);
-            result.add(item);
-            queue.addAll(item.getCustomChildren(false));
-        }
+        return breadthFirstSearch(root, Collections.emptySet());
+    }
+
+    /**
+     * Traverse a tree breadth first, without visiting the descendants of certain nodes
+     *
+     * @param root The root
+     * @param skip The nodes of which the children are not visited
+     * @return The list of elements, in the desired order
+     */
+    static ArrayList<CustomElement> breadthFirstSearch(CustomElement root, Set<CustomElement> skip) {
+        ArrayList<CustomElement> result = new ArrayList<>();
+        result.add(root);
+        //The result itself is used as the queue
+        for (int i = 0; i < result.size(); i++)
+            if (!skip.contains(result.get(i)))
+                result.addAll(result.get(i).getCustomChildren(false));
         return result;
     }
 
@@ -41,13 +51,16 @@ final class Utils {
      */
     static ArrayList<CustomElement> postOrderTraverse(CustomElement root) {
         ArrayList<CustomElement> result = new ArrayList<>();
-        for (CustomElement child : root.getCustomChildren(false)) {
-            result.addAll(postOrderTraverse(child));
-        }
-        result.add(root);
+        postOrderTraverse(root, result);
         return result;
     }
 
+    private static void postOrderTraverse(CustomElement root, ArrayList<CustomElement> result) {
+        for (CustomElement child : root.getCustomChildren(false))
+            postOrderTraverse(child, result);
+        result.add(root);
+    }
+
     /**
      * Traverse a tree post order reversed
      *
@@ -55,70 +68,137 @@ final class Utils {
      * @return The list of elements, in the desired order
      */
     static ArrayList<CustomElement> reversePostOrderTraverse(CustomElement root) {
+        return reversePostOrderTraverse(root, Collections.emptySet());
+    }
+
+    /**
+     * Traverse a tree post order reversed, without visiting the descendants of certain nodes
+     *
+     * @param root The root
+     * @param skip The nodes of which the children are not visited
+     * @return The list of elements, in the desired order
+     */
+    static ArrayList<CustomElement> reversePostOrderTraverse(CustomElement root, Set<CustomElement> skip) {
         ArrayList<CustomElement> result = new ArrayList<>();
-        List<CustomElement> children = new ArrayList<>(root.getCustomChildren(false));
-        Collections.reverse(children);
-        for (CustomElement child : children)
-            result.addAll(reversePostOrderTraverse(child));
-        result.add(root);
+        reversePostOrderTraverse(root, skip, result);
         return result;
     }
 
+    private static void reversePostOrderTraverse(CustomElement root, Set<CustomElement> skip, ArrayList<CustomElement> result) {
+        if (!skip.contains(root)) {
+            List<CustomElement> children = root.getCustomChildren(false);
+            for (int i = children.size() - 1; i >= 0; i--)
+                reversePostOrderTraverse(children.get(i), skip, result);
+        }
+        result.add(root);
+    }
+
     /**
-     * Get the lcs of children in the two list of children. Return the list as tuples
-     * https://www.geeksforgeeks.org/printing-longest-common-subsequence/
+     * Hash a string, using 64 bit FNV-1a
      *
-     * @param leftChildren  The list of children in left
-     * @param rightChildren The list of children in right
-     * @param eq            The function that decides whether two nodes are equal
-     * @return The elements that occur in the lcs, as a list of tuples
+     * @param s The string
+     * @return The hash
      */
-    static HashMap<CustomElement, CustomElement> lcs(ArrayList<CustomElement> leftChildren, ArrayList<CustomElement> rightChildren, BiFunction<CustomElement, CustomElement, Boolean> eq) {
-        int m = leftChildren.size();
-        int n = rightChildren.size();
-        int[][] matrix = new int[m + 1][n + 1];
-
-        // Following steps build L[m+1][n+1] in bottom up fashion. Note
-        // that L[i][j] contains length of LCS of X[0..i-1] and Y[0..j-1]
-        for (int i = 0; i <= m; i++) {
-            for (int j = 0; j <= n; j++) {
-                if (i == 0 || j == 0)
-                    matrix[i][j] = 0;
-                else if (eq.apply(leftChildren.get(i - 1), rightChildren.get(j - 1)))
-                    matrix[i][j] = matrix[i - 1][j - 1] + 1;
-                else
-                    matrix[i][j] = Math.max(matrix[i - 1][j], matrix[i][j - 1]);
-            }
+    static long hash(String s) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= FNV_PRIME;
         }
+        return hash;
+    }
 
-        // Following code is used to get LCS
+    /**
+     * Combine two hashes, such that the result depends on the order of the two
+     *
+     * @param h The first hash
+     * @param v The second hash
+     * @return The combined hash
+     */
+    static long combineHashes(long h, long v) {
+        h = (h ^ v) * FNV_PRIME;
+        h ^= h >>> 29;
+        return h * 0xbf58476d1ce4e5b9L + v;
+    }
 
-        // Create a map to store tuples in the lcs
-        HashMap<CustomElement, CustomElement> matches = new HashMap<>();
+    /**
+     * Calculate a longest common subsequence of two sequences of ints, using the linear space variant of Myers'
+     * O(ND) difference algorithm (http://www.xmailserver.org/diff2.pdf). Common prefixes and suffixes are matched
+     * first. The rest is divided recursively at the middle snake of its shortest edit script, like in Hirschberg's
+     * algorithm, so only two arrays of O(N + M) ints are needed
+     *
+     * @param a The first sequence
+     * @param b The second sequence
+     * @return For each position in a, the position in b it is matched with in the lcs, or -1
+     */
+    static int[] lcs(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        Arrays.fill(result, -1);
+        int max = (a.length + b.length + 1) / 2 + 2;
+        lcs(a, 0, a.length, b, 0, b.length, result, new int[2 * max + 1], new int[2 * max + 1]);
+        return result;
+    }
 
-        // Start from the right-most-bottom-most corner and
-        // one by one store characters in lcs[]
-        int i = m, j = n;
-        while (i > 0 && j > 0) {
-            // If current character in X[] and Y are same, then
-            // current character is part of LCS
-            if (eq.apply(leftChildren.get(i - 1), rightChildren.get(j - 1))) {
-                // Put current character in result
-                matches.put(leftChildren.get(i - 1), rightChildren.get(j - 1));
+    private static void lcs(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, int[] result,
+                            int[] forward, int[] backward) {
+        //Match the common prefix and suffix
+        while (aFrom < aTo && bFrom < bTo && a[aFrom] == b[bFrom])
+            result[aFrom++] = bFrom++;
+        while (aFrom < aTo && bFrom < bTo && a[aTo - 1] == b[bTo - 1])
+            result[--aTo] = --bTo;
+        if (aFrom >= aTo || bFrom >= bTo)
+            return;
+        //Find the middle snake, and solve the parts before and after it
+        int[] snake = middleSnake(a, aFrom, aTo, b, bFrom, bTo, forward, backward);
+        lcs(a, aFrom, snake[0], b, bFrom, snake[1], result, forward, backward);
+        for (int x = snake[0], y = snake[1]; x < snake[2]; x++, y++)
+            result[x] = y;
+        lcs(a, snake[2], aTo, b, snake[3], bTo, result, forward, backward);
+    }
 
-                // reduce values of i and j
-                i--;
-                j--;
+    /**
+     * Find the middle snake of the shortest edit script of two ranges that don't have a common prefix or suffix: the
+     * diagonal on which the forward and the backward search first overlap. V[k] holds the furthest x reached on
+     * diagonal k = x - y, from the start of the ranges for the forward search, and from the end for the backward one
+     *
+     * @return The start and end of the snake, as {x, y, u, v}
+     */
+    private static int[] middleSnake(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo,
+                                     int[] forward, int[] backward) {
+        int n = aTo - aFrom, m = bTo - bFrom, delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2, offset = max + 1;
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1]) ?
+                        forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                int y = x - k, startX = x, startY = y;
+                while (x < n && y < m && a[aFrom + x] == b[bFrom + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int reverse = delta - k;
+                if (odd && reverse >= -(d - 1) && reverse <= d - 1 && x >= n - backward[offset + reverse])
+                    return new int[]{aFrom + startX, bFrom + startY, aFrom + x, bFrom + y};
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1]) ?
+                        backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                int y = x - k, startX = x, startY = y;
+                while (x < n && y < m && a[aTo - 1 - x] == b[bTo - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + k] = x;
+                int diagonal = delta - k;
+                if (!odd && diagonal >= -d && diagonal <= d && n - x <= forward[offset + diagonal])
+                    return new int[]{aTo - x, bTo - y, aTo - startX, bTo - startY};
             }
-
-            // If not same, then find the larger of two and
-            // go in the direction of larger value
-            else if (matrix[i - 1][j] > matrix[i][j - 1])
-                i--;
-            else
-                j--;
         }
-        return matches;
+        throw new IllegalStateException("No middle snake found");//Doesn't happen, as the searches overlap at max
     }
 
     /**
@@ -164,56 +244,111 @@ final class Utils {
     }
 
     /**
-     * Rewrite a tree with root Element, to a tree where all elements are of type CustomElement
+     * Replace every sequence of whitespace characters by a single space, and trim the result. This gives the same
+     * result as s.replaceAll("\\s+", " ").trim(), in a single pass, and without copying strings that are already
+     * normalized
      *
-     * @param children the children of the original root
-     * @param parent   The customCustomElement version of the original root
+     * @param s The string
+     * @return The normalized string
      */
-    private static void addChildrenToParent(List<Content> children, CustomElement parent) {
-        while (children.size() > 0) {
-            Content first = children.remove(0);
-            if (first instanceof Text)
-                parent.setCustomText(new Text(parent.getCustomText() + ((Text) first).getText()));
-            else if(first instanceof  CDATA)
-                parent.setCustomText(new Text(parent.getCustomText() + ((CDATA)first).getTextNormalize()));
-            else if (first instanceof Element) {
-                if(((Element)first).getName().equals("style"))
-                    System.out.println("");
-                CustomElement newChild = new CustomElement((Element) first);
-                addChildrenToParent(((Element) first).getContent(), newChild);
-                if (children.size() > 0 && children.get(0) instanceof Text)
-                    newChild.setTail((Text) children.remove(0));
-                parent.addContent(newChild);
+    static String normalizeWhitespace(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (isWhitespace(c) && (c != ' ' || i == 0 || i == length - 1 || isWhitespace(s.charAt(i + 1)))) {
+                StringBuilder sb = new StringBuilder(length);
+                appendNormalizedWhitespace(sb, s, true);
+                return sb.toString().trim();
             }
         }
+        return s.trim();
     }
 
     /**
-     * Create a tree by a filename
+     * Append a string to a normalized string, such that the result is normalized as well, see normalizeWhitespace.
+     * Whitespace at the start of s becomes a single space, unless sb is empty or trimStart is set, and whitespace at
+     * its end is dropped
+     *
+     * @param sb        The normalized string
+     * @param s         The string to append
+     * @param trimStart Whether to drop the whitespace at the start of s
+     */
+    static void appendNormalizedWhitespace(StringBuilder sb, CharSequence s, boolean trimStart) {
+        boolean space = false, start = true;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isWhitespace(c))
+                space = true;
+            else {
+                if (space && sb.length() > 0 && !(trimStart && start))
+                    sb.append(' ');
+                sb.append(c);
+                space = false;
+                start = false;
+            }
+        }
+    }
+
+    /**
+     * @return Whether c is a whitespace character, like \s in a regular expression
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Create a tree by a filename. The html is cleaned by HtmlCleaner, and its TagNodes are copied to CustomElements
+     * by a TreeBuilder. Files that hold a tree stored by the TreeSerializer, like binary snapshots, are read as they
+     * are, without cleaning them again
      *
      * @param filename The filename
      * @return The tree
-     * @throws JDOMException SaxBuilder might throw this exception
-     * @throws IOException   SaxBuilder might throw this exception
+     * @throws IOException Thrown when the file cannot be read, or when parsing is interrupted
+     */
+    static CustomElement filenameToTree(String filename) throws IOException {
+        File file = new File(filename);
+        if (TreeSerializer.isStoredTree(file))
+            return TreeSerializer.read(file);
+        HtmlCleaner cleaner = new HtmlCleaner();
+        return buildTree(cleaner, cleaner.clean(file, "utf-8"), filename);
+    }
+
+    /**
+     * Create a tree from html, like filenameToTree
+     *
+     * @param html The html
+     * @return The tree
+     * @throws IOException Thrown when parsing is interrupted
      */
-    static CustomElement filenameToTree(String filename) throws JDOMException, IOException {
-        String content = fileNameToCleanContent(filename);
-        Document d = new SAXBuilder().build(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
-        CustomElement root = new CustomElement(d.getRootElement());
-        addChildrenToParent(d.getRootElement().getContent(), root);
-        return root;
+    static CustomElement htmlToTree(String html) throws IOException {
+        HtmlCleaner cleaner = new HtmlCleaner();
+        return buildTree(cleaner, cleaner.clean(html), "html");
     }
 
     /**
-     * Read an html file, clean it using HTMLCleaner, and return its clean content as a string
+     * Create a tree from a stream of html in UTF-8, like filenameToTree
      *
-     * @param filename The name of the input file
-     * @return The clean contents of the input file
-     * @throws IOException Might be thrown
+     * @param in The stream. It is read until its end
+     * @return The tree
+     * @throws IOException Thrown when the stream cannot be read, or when parsing is interrupted
      */
-    private static String fileNameToCleanContent(String filename) throws IOException {
+    static CustomElement streamToTree(InputStream in) throws IOException {
         HtmlCleaner cleaner = new HtmlCleaner();
-        TagNode root = cleaner.clean(new File(filename), "utf-8");
-        return new CompactXmlSerializer(cleaner.getProperties()).getAsString(root);
+        return buildTree(cleaner, cleaner.clean(in, "utf-8"), "stream");
+    }
+
+    /**
+     * Copy the TagNodes created by an HtmlCleaner to CustomElements
+     *
+     * @param cleaner The HtmlCleaner
+     * @param root    The root TagNode, or null if the cleaner was interrupted
+     * @param name    The name of the cleaned html, used in errors
+     * @return The tree
+     * @throws IOException Thrown when parsing was interrupted
+     */
+    private static CustomElement buildTree(HtmlCleaner cleaner, TagNode root, String name) throws IOException {
+        if (root == null)//HtmlCleaner stops when the thread is interrupted
+            throw new InterruptedIOException("Parsing " + name + " was interrupted");
+        return new TreeBuilder(cleaner.getProperties()).build(root);
     }
 }